@@ -14,8 +14,12 @@
 
 package com.google.sps.config;
 
-/** Contains boolean flag whether running tests or not. */
+/** Contains boolean flags for running tests and for optional features. */
 public class Flags {
   /** True when running a test, false otherwise. */
   public static final boolean IS_TEST = true;
+  /** True to acknowledge new comments before they are in Datastore. See CommentWriteBehind. */
+  public static final boolean WRITE_BEHIND = false;
+  /** True to poll Datastore for comments changed by other instances. See CommentSync. */
+  public static final boolean DELTA_SYNC = false;
 }
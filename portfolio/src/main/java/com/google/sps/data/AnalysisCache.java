@@ -0,0 +1,198 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Analyses of comments, so that each comment is analyzed once. Recently used analyses are kept
+ * in a bounded least-recently-used map, and every analysis is kept in an AnalysisStore, where it
+ * survives restarts. Concurrent requests for an analysis that is in neither share a single
+ * computation. Only complete analyses are kept; one that missed a deadline is computed again next
+ * time.
+ */
+public class AnalysisCache {
+  /** Computes an analysis that isn't cached. */
+  @FunctionalInterface
+  public interface Analyzer {
+    CommentAnalysis analyze() throws IOException;
+  }
+
+  private final Map<Long, CommentAnalysis> recent;
+  /** Where analyses are stored, or null to keep them in memory only. */
+  @Nullable
+  private final AnalysisStore store;
+  /** Analyses being looked up or computed, by comment ID. */
+  private final ConcurrentMap<Long, CompletableFuture<CommentAnalysis>> inFlight;
+
+  /** Creates a cache keeping at most capacity analyses in memory. */
+  public AnalysisCache(int capacity, @Nullable AnalysisStore store) {
+    // Access order makes iteration order least-recently-used first
+    recent = new LinkedHashMap<Long, CommentAnalysis>(capacity, .75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, CommentAnalysis> eldest) {
+        return size() > capacity;
+      }
+    };
+    this.store = store;
+    inFlight = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the analysis of the comment with the given ID, from memory, then from the store, and
+   * finally from analyzer. If another thread is already getting it, waits for that thread's
+   * result instead. Rethrows analyzer's exceptions, to every waiting thread.
+   */
+  public CommentAnalysis get(long commentId, Analyzer analyzer) throws IOException {
+    return get(commentId, analyzer, true);
+  }
+
+  /**
+   * Same as {@link #get(long, Analyzer)}, but if keepInMemory is false, an analysis that isn't in
+   * memory yet is stored without keeping it there, so that a scan of many old comments doesn't
+   * push out the analyses in use.
+   */
+  public CommentAnalysis get(long commentId, Analyzer analyzer, boolean keepInMemory)
+      throws IOException {
+    Optional<CommentAnalysis> cached = getRecent(commentId);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    CompletableFuture<CommentAnalysis> result = new CompletableFuture<>();
+    CompletableFuture<CommentAnalysis> running = inFlight.putIfAbsent(commentId, result);
+    if (running != null) {
+      return await(running);
+    }
+    try {
+      result.complete(load(commentId, analyzer, keepInMemory));
+    } catch (IOException | RuntimeException | Error e) {
+      // Waiting threads must not hang, whatever went wrong
+      result.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(commentId, result);
+    }
+    return result.join();
+  }
+
+  /**
+   * Returns the analyses of the comments with the given IDs that are in memory or in the store,
+   * keyed by comment ID, without computing any. Those not in memory are read from the store
+   * together, and aren't kept in memory. If the store can't be read, only those in memory are
+   * returned.
+   */
+  public Map<Long, CommentAnalysis> getAvailable(Collection<Long> commentIds) {
+    Map<Long, CommentAnalysis> available = new HashMap<>();
+    List<Long> missing = new ArrayList<>();
+    for (long commentId : commentIds) {
+      Optional<CommentAnalysis> cached = getRecent(commentId);
+      if (cached.isPresent()) {
+        available.put(commentId, cached.get());
+      } else {
+        missing.add(commentId);
+      }
+    }
+    if (store != null && !missing.isEmpty()) {
+      try {
+        available.putAll(store.loadAll(missing));
+      } catch (RuntimeException e) {
+        System.err.println("Error loading the analyses of " + missing.size() + " comments: "
+            + e.getMessage());
+      }
+    }
+    return available;
+  }
+
+  /**
+   * Finds the analysis in the store or computes it, and stores it if complete. Checks memory again
+   * first, since another thread may have finished it since this one last looked.
+   */
+  private CommentAnalysis load(long commentId, Analyzer analyzer, boolean keepInMemory)
+      throws IOException {
+    Optional<CommentAnalysis> cached = getRecent(commentId);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    Optional<CommentAnalysis> stored = Optional.empty();
+    if (store != null) {
+      try {
+        stored = store.load(commentId);
+      } catch (RuntimeException e) {
+        System.err.println("Error loading the analysis of comment " + commentId
+            + ", so it is computed again: " + e.getMessage());
+      }
+    }
+    if (stored.isPresent()) {
+      if (keepInMemory) {
+        putRecent(commentId, stored.get());
+      }
+      return stored.get();
+    }
+
+    CommentAnalysis analysis = analyzer.analyze();
+    if (analysis.isComplete()) {
+      if (store != null) {
+        try {
+          store.save(commentId, analysis);
+        } catch (RuntimeException e) {
+          System.err.println("Error storing the analysis of comment " + commentId
+              + ", so it is only cached on this instance: " + e.getMessage());
+        }
+      }
+      if (keepInMemory) {
+        putRecent(commentId, analysis);
+      }
+    }
+    return analysis;
+  }
+
+  private synchronized Optional<CommentAnalysis> getRecent(long commentId) {
+    return Optional.ofNullable(recent.get(commentId));
+  }
+
+  private synchronized void putRecent(long commentId, CommentAnalysis analysis) {
+    recent.put(commentId, analysis);
+  }
+
+  /** Waits for another thread's result, rethrowing its exception. */
+  private static CommentAnalysis await(CompletableFuture<CommentAnalysis> running)
+      throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(running);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Analysis failed", e.getCause());
+    }
+  }
+}
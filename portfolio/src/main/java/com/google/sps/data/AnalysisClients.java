@@ -0,0 +1,141 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.api.gax.rpc.UnaryCallSettings;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.language.v1.LanguageServiceSettings;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+import org.threeten.bp.Duration;
+
+/**
+ * The GCloud clients used to analyze comments. Each client owns a gRPC channel, which is costly to
+ * set up, so these are created once and shared by every request; the clients are safe to call from
+ * multiple threads. Images go to Vision through a VisionBatcher, so that concurrent analyses share
+ * calls. Close this when done with it to shut the channels down.
+ */
+public class AnalysisClients implements AutoCloseable {
+  /** System property with how often to ping an idle channel, in seconds, to keep it open. */
+  public static final String KEEP_ALIVE_PROPERTY = "analysis.keepalive.seconds";
+  /** System property with how long to wait for a keep-alive ping before dropping the channel. */
+  public static final String KEEP_ALIVE_TIMEOUT_PROPERTY = "analysis.keepalive.timeout.seconds";
+  /** System property with how long a single Vision or Language call may take, in milliseconds. */
+  public static final String DEADLINE_PROPERTY = "analysis.deadline.ms";
+  /** System property with how long an image may wait for others to share its Vision call. */
+  public static final String BATCH_DELAY_PROPERTY = "analysis.vision.batch.delay.ms";
+  private static final long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+  private static final long DEFAULT_KEEP_ALIVE_TIMEOUT_SECONDS = 20;
+  private static final long DEFAULT_DEADLINE_MS = 10000;
+  private static final long DEFAULT_BATCH_DELAY_MS = 5;
+  /** How long closing waits for calls in progress to finish. */
+  private static final long CLOSE_TIMEOUT_MS = 5000;
+
+  private final ImageAnnotatorClient vision;
+  private final VisionBatcher visionBatcher;
+  private final LanguageServiceClient language;
+
+  /** Wraps the given clients, which are closed along with this. */
+  public AnalysisClients(ImageAnnotatorClient vision, LanguageServiceClient language) {
+    this(vision, language, DEFAULT_BATCH_DELAY_MS);
+  }
+
+  private AnalysisClients(ImageAnnotatorClient vision, LanguageServiceClient language,
+      long batchDelayMs) {
+    this.vision = vision;
+    visionBatcher = new VisionBatcher(vision, VisionBatcher.MAX_BATCH_SIZE, batchDelayMs);
+    this.language = language;
+  }
+
+  /**
+   * Creates clients whose channels, deadlines and batching are set by
+   * {@value #KEEP_ALIVE_PROPERTY}, {@value #KEEP_ALIVE_TIMEOUT_PROPERTY},
+   * {@value #DEADLINE_PROPERTY} and {@value #BATCH_DELAY_PROPERTY}.
+   */
+  public static AnalysisClients fromSystemProperties() throws IOException {
+    Duration keepAlive =
+        Duration.ofSeconds(Long.getLong(KEEP_ALIVE_PROPERTY, DEFAULT_KEEP_ALIVE_SECONDS));
+    Duration keepAliveTimeout = Duration.ofSeconds(
+        Long.getLong(KEEP_ALIVE_TIMEOUT_PROPERTY, DEFAULT_KEEP_ALIVE_TIMEOUT_SECONDS));
+    Duration deadline = Duration.ofMillis(Long.getLong(DEADLINE_PROPERTY, DEFAULT_DEADLINE_MS));
+
+    ImageAnnotatorSettings.Builder visionSettings = ImageAnnotatorSettings.newBuilder()
+        .setTransportChannelProvider(keepAlive(
+            ImageAnnotatorSettings.defaultGrpcTransportProviderBuilder(), keepAlive,
+            keepAliveTimeout));
+    setDeadline(visionSettings.batchAnnotateImagesSettings(), deadline);
+
+    LanguageServiceSettings.Builder languageSettings = LanguageServiceSettings.newBuilder()
+        .setTransportChannelProvider(keepAlive(
+            LanguageServiceSettings.defaultGrpcTransportProviderBuilder(), keepAlive,
+            keepAliveTimeout));
+    setDeadline(languageSettings.analyzeSentimentSettings(), deadline);
+
+    ImageAnnotatorClient vision = ImageAnnotatorClient.create(visionSettings.build());
+    try {
+      return new AnalysisClients(vision, LanguageServiceClient.create(languageSettings.build()),
+          Long.getLong(BATCH_DELAY_PROPERTY, DEFAULT_BATCH_DELAY_MS));
+    } catch (IOException | RuntimeException e) {
+      vision.close();
+      throw e;
+    }
+  }
+
+  private static InstantiatingGrpcChannelProvider keepAlive(
+      InstantiatingGrpcChannelProvider.Builder channel, Duration time, Duration timeout) {
+    // Pinging idle channels keeps load balancers from dropping them between analyses
+    return channel.setKeepAliveTime(time).setKeepAliveTimeout(timeout)
+        .setKeepAliveWithoutCalls(true).build();
+  }
+
+  /** Makes every attempt of a call, and all of its retries together, end by deadline. */
+  private static void setDeadline(UnaryCallSettings.Builder<?, ?> call, Duration deadline) {
+    call.setRetrySettings(call.getRetrySettings().toBuilder().setInitialRpcTimeout(deadline)
+        .setMaxRpcTimeout(deadline).setTotalTimeout(deadline).build());
+  }
+
+  /** Returns the batcher to send image annotation requests through. */
+  public VisionBatcher getVisionBatcher() {
+    return visionBatcher;
+  }
+
+  public LanguageServiceClient getLanguage() {
+    return language;
+  }
+
+  /** Stops both clients, giving calls in progress a few seconds to finish. */
+  @Override
+  public void close() {
+    // Sends the batches already collected before the channel goes
+    visionBatcher.close();
+    vision.shutdown();
+    language.shutdown();
+    try {
+      long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+      vision.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      language.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // Cuts off whatever is still running
+      vision.shutdownNow();
+      language.shutdownNow();
+    }
+  }
+}
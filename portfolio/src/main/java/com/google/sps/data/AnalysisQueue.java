@@ -0,0 +1,255 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Analyzes comments in the background, so that their analyses are stored before anyone asks for
+ * them. New comments are queued as they are posted. Comments posted before analysis was eager are
+ * handled by a backfill. It first reads the stored analyses of every comment in large batches,
+ * and reports them straight away, so that sorting by sentiment is right within seconds of a
+ * restart. Only comments without a stored analysis are then fed into the queue, throttled and
+ * never past half its capacity, so that they don't crowd out new comments. When the queue is full
+ * anyway, the backfill backs off and tries again.
+ *
+ * <p>The queue is bounded: when it is full, new comments are skipped, and are analyzed when first
+ * asked for instead. An analysis that fails or misses its deadline is retried a few times, each
+ * time after a longer delay.
+ */
+public class AnalysisQueue implements AutoCloseable {
+  /** Threads analyzing queued comments. */
+  static final int DEFAULT_WORKERS = 4;
+  /** Most comments waiting to be analyzed. */
+  static final int DEFAULT_CAPACITY = 256;
+  /** Times each comment is tried before it's left for a request to analyze. */
+  static final int MAX_ATTEMPTS = 3;
+  /** Delay before the first retry. Doubles with each further retry. */
+  static final long DEFAULT_RETRY_DELAY_MS = 2000;
+  /** Time between two backfilled comments. */
+  static final long DEFAULT_BACKFILL_INTERVAL_MS = 200;
+  /** Longest the backfill waits for room in the queue before trying again. */
+  static final long MAX_BACKFILL_BACKOFF_MS = 60000;
+  /** Comments whose stored analyses the backfill reads at once. */
+  private static final int BACKFILL_BATCH_SIZE = 1000;
+  /** How long closing waits for analyses in progress. */
+  private static final long CLOSE_TIMEOUT_MS = 5000;
+
+  /** Computes the analysis of a comment. */
+  @FunctionalInterface
+  public interface Analyzer {
+    CommentAnalysis analyze(Comment comment) throws IOException;
+  }
+
+  private final AnalysisCache analyses;
+  private final Analyzer analyzer;
+  /** Told about every complete analysis, with the ID of its comment. */
+  private final BiConsumer<Long, CommentAnalysis> listener;
+  private final int capacity;
+  private final long retryDelayMs;
+  private final long backfillIntervalMs;
+  private final ThreadPoolExecutor workers;
+  /** Puts failed analyses back in the queue once their delay is up. */
+  private final ScheduledExecutorService retries;
+  private Thread backfill;
+  private volatile boolean closed;
+
+  /** A comment to analyze, and how many times it has been tried. */
+  private class Task implements Runnable {
+    private final Comment comment;
+    private final int attempt;
+    /** False for backfilled comments, which would push recent analyses out of memory. */
+    private final boolean keepInMemory;
+
+    private Task(Comment comment, int attempt, boolean keepInMemory) {
+      this.comment = comment;
+      this.attempt = attempt;
+      this.keepInMemory = keepInMemory;
+    }
+
+    @Override
+    public void run() {
+      String problem;
+      try {
+        CommentAnalysis analysis =
+            analyses.get(comment.getId(), () -> analyzer.analyze(comment), keepInMemory);
+        if (analysis.isComplete()) {
+          listener.accept(comment.getId(), analysis);
+          return;
+        }
+        problem = "it is incomplete";
+      } catch (IOException | RuntimeException e) {
+        problem = e.getMessage();
+      }
+      if (attempt >= MAX_ATTEMPTS || closed) {
+        System.err.println("Gave up analyzing comment " + comment.getId() + " in the background: "
+            + problem);
+        return;
+      }
+      long delay = retryDelayMs << (attempt - 1);
+      try {
+        retries.schedule(() -> enqueue(new Task(comment, attempt + 1, keepInMemory)), delay,
+            TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Closed meanwhile
+      }
+    }
+  }
+
+  /**
+   * Creates a queue storing analyses computed by analyzer in analyses, and passing each complete
+   * one to listener.
+   */
+  public AnalysisQueue(AnalysisCache analyses, Analyzer analyzer,
+      BiConsumer<Long, CommentAnalysis> listener) {
+    this(analyses, analyzer, listener, DEFAULT_WORKERS, DEFAULT_CAPACITY, DEFAULT_RETRY_DELAY_MS,
+        DEFAULT_BACKFILL_INTERVAL_MS);
+  }
+
+  AnalysisQueue(AnalysisCache analyses, Analyzer analyzer,
+      BiConsumer<Long, CommentAnalysis> listener, int workerCount, int capacity,
+      long retryDelayMs, long backfillIntervalMs) {
+    this.analyses = analyses;
+    this.analyzer = analyzer;
+    this.listener = listener;
+    this.capacity = capacity;
+    this.retryDelayMs = retryDelayMs;
+    this.backfillIntervalMs = backfillIntervalMs;
+    workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(capacity),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("comment-analysis-%d").build());
+    retries = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("analysis-retry").build());
+  }
+
+  /** Queues a new comment. Returns false if the queue is full or closed, skipping it. */
+  public boolean submit(Comment comment) {
+    return enqueue(new Task(comment, 1, true));
+  }
+
+  private boolean enqueue(Task task) {
+    if (tryEnqueue(task)) {
+      return true;
+    }
+    if (!closed) {
+      System.err.println("The analysis queue is full, so comment " + task.comment.getId()
+          + " will be analyzed when first asked for");
+    }
+    return false;
+  }
+
+  /** Queues task, or returns false if the queue is full or closed. */
+  private boolean tryEnqueue(Task task) {
+    try {
+      workers.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Starts the backfill of the comments returned by source on a background thread. Stored
+   * analyses are reported at once; the other comments are fed into the queue one every few
+   * hundred milliseconds. source is called on that thread, so it may block until the comments are
+   * loaded.
+   */
+  public synchronized void startBackfill(Supplier<List<Comment>> source) {
+    if (backfill != null || closed) {
+      return;
+    }
+    backfill = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("analysis-backfill")
+        .build().newThread(() -> runBackfill(source));
+    backfill.start();
+  }
+
+  private void runBackfill(Supplier<List<Comment>> source) {
+    int restored = 0;
+    int queued = 0;
+    try {
+      List<Comment> unanalyzed = new ArrayList<>();
+      for (List<Comment> batch : Lists.partition(source.get(), BACKFILL_BATCH_SIZE)) {
+        if (closed) {
+          return;
+        }
+        Map<Long, CommentAnalysis> stored = analyses.getAvailable(
+            batch.stream().map(Comment::getId).collect(Collectors.toList()));
+        for (Comment comment : batch) {
+          CommentAnalysis analysis = stored.get(comment.getId());
+          if (analysis != null && analysis.isComplete()) {
+            listener.accept(comment.getId(), analysis);
+            restored++;
+          } else {
+            unanalyzed.add(comment);
+          }
+        }
+      }
+      System.err.println("Restored " + restored + " stored analyses");
+
+      for (Comment comment : unanalyzed) {
+        long backoff = backfillIntervalMs;
+        // Leaves room for new comments, and waits out bursts that fill the queue anyway
+        while (workers.getQueue().size() >= capacity / 2
+            || !tryEnqueue(new Task(comment, 1, false))) {
+          if (closed) {
+            return;
+          }
+          Thread.sleep(backoff);
+          backoff = Math.min(Math.max(2 * backoff, 1), MAX_BACKFILL_BACKOFF_MS);
+        }
+        queued++;
+        Thread.sleep(backfillIntervalMs);
+      }
+      System.err.println("Queued " + queued + " existing comments for analysis");
+    } catch (InterruptedException e) {
+      // Closed
+    } catch (RuntimeException e) {
+      System.err.println("Backfill stopped after " + restored + " stored analyses and " + queued
+          + " comments: " + e.getMessage());
+    }
+  }
+
+  /** Stops the backfill and the retries, and waits a few seconds for analyses in progress. */
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (this) {
+      if (backfill != null) {
+        backfill.interrupt();
+      }
+    }
+    retries.shutdownNow();
+    workers.shutdown();
+    try {
+      workers.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Persistent storage for the analyses of comments. Comments never change, so an analysis stored
+ * here stays valid for as long as its comment exists.
+ */
+public interface AnalysisStore {
+  /** Returns the stored analysis of the comment with the given ID, if there is one. */
+  Optional<CommentAnalysis> load(long commentId);
+
+  /**
+   * Returns the stored analyses of the comments with the given IDs, keyed by comment ID, reading
+   * them in as few calls as possible. Comments without a stored analysis are left out.
+   */
+  Map<Long, CommentAnalysis> loadAll(Collection<Long> commentIds);
+
+  /** Stores a complete analysis of the comment with the given ID, replacing any stored before. */
+  void save(long commentId, CommentAnalysis analysis);
+
+  /** Deletes the stored analyses of the comments with the given IDs, skipping any not stored. */
+  void delete(Collection<Long> commentIds);
+}
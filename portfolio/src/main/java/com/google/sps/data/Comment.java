@@ -24,6 +24,8 @@ import org.apache.commons.lang3.StringUtils;
 
 /** Represents a single comment from a user. */
 public class Comment implements Comparable<Comment> {
+  /** Datastore kind of comment entities. */
+  static final String KIND = "Comment";
   /** Key for the name of the commenter. */
   static final String COMMENT_NAME = "name";
   /** Key for the comment contents. */
@@ -35,7 +37,7 @@ public class Comment implements Comparable<Comment> {
   /** Key for the attached image. */
   static final String COMMENT_PICTURE_BLOBKEY = "blobkey";
 
-  /** Used only for test instances - it assigns IDs without the need of a database */
+  /** Used only for test instances without a key - it assigns IDs without the need of a database */
   private static int idCounter = 0;
 
   /** Text of the comment. */
@@ -48,7 +50,7 @@ public class Comment implements Comparable<Comment> {
    * The ID of the key associated with the entity that keeps this comment in persistent storage.
    */
   private final long id;
-  /** The key that keeps this comment in persistent storage. */
+  /** The key that keeps this comment in Datastore, or null if it is stored elsewhere. */
   private final Key key;
   /** URL for an attached image. */
   private final Optional<String> imageUrl;
@@ -58,17 +60,29 @@ public class Comment implements Comparable<Comment> {
   /** Create a comment with a posted date of given milliseconds from the epoch. */
   public Comment(String text, String name, Key key, long timestamp, @Nullable String imageUrl,
       @Nullable BlobKey blobKey) {
+    this(text, name, idOf(key), key, timestamp, imageUrl, blobKey);
+  }
+
+  /**
+   * Create a comment with the given ID, for stores that assign IDs themselves. key is only needed
+   * for comments kept in Datastore.
+   */
+  public Comment(String text, String name, long id, @Nullable Key key, long timestamp,
+      @Nullable String imageUrl, @Nullable BlobKey blobKey) {
     this.text = text;
     this.name = name;
+    this.id = id;
     this.timestamp = timestamp;
     this.key = key;
     this.imageUrl = Optional.ofNullable(imageUrl);
     this.blobKey = Optional.ofNullable(blobKey);
-    if (Flags.IS_TEST) {
-      this.id = idCounter++;
-    } else {
-      this.id = key.getId();
+  }
+
+  private static long idOf(Key key) {
+    if (Flags.IS_TEST && key == null) {
+      return idCounter++;
     }
+    return key.getId();
   }
 
   /** Create a comment with the current time as creation date. */
@@ -95,6 +109,17 @@ public class Comment implements Comparable<Comment> {
     return new Comment(text, name, entity.getKey(), time, url, blobKey);
   }
 
+  /** Returns an Entity that stores this comment. The inverse of {@link #fromEntity}. */
+  public Entity toEntity() {
+    Entity entity = new Entity(key);
+    entity.setProperty(COMMENT_TEXT, text);
+    entity.setProperty(COMMENT_NAME, name);
+    entity.setProperty(COMMENT_TIMESTAMP, timestamp);
+    imageUrl.ifPresent(url -> entity.setProperty(COMMENT_PICTURE_URL, url));
+    blobKey.ifPresent(blob -> entity.setProperty(COMMENT_PICTURE_BLOBKEY, blob));
+    return entity;
+  }
+
   /**
    * Returns true if text or name (inclusive) contains the filter string, ignoring case.
    */
@@ -14,10 +14,15 @@
 
 package com.google.sps.data;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
@@ -26,27 +31,51 @@ import com.google.cloud.language.v1.LanguageServiceClient;
 import com.google.cloud.language.v1.Sentiment;
 import com.google.cloud.vision.v1.AnnotateImageRequest;
 import com.google.cloud.vision.v1.AnnotateImageResponse;
-import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
 import com.google.cloud.vision.v1.EntityAnnotation;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.Image;
-import com.google.cloud.vision.v1.ImageAnnotatorClient;
 import com.google.gson.Gson;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.sps.config.Flags;
+import com.google.sps.metrics.Metrics;
 import com.google.common.collect.ImmutableList;
 
 /**
- * Represents analysis with GCloud of a particular comment. Right now just holds image labels, but
- * will eventually also analyze the sentiment of the comment text.
+ * Represents analysis with GCloud of a particular comment: labels for its image, and the sentiment
+ * of its text. The two analyses may run at the same time on different threads. Each result is
+ * published whole once it is complete, and stays null until then, so a reader that gives up
+ * waiting on one of them sees the other alone, and the missing one is left out of the JSON.
  */
 public class CommentAnalysis {
-  private List<ImageLabel> imageLabels;
-  /** The sentiment of the comment, ranging from -1 (very negative) to 1 (very positive) */
-  private float sentimentScore;
+  /** Labels for the comment's image, or null if not analyzed yet. */
+  @Nullable
+  private volatile List<ImageLabel> imageLabels;
+  /**
+   * The sentiment of the comment, ranging from -1 (very negative) to 1 (very positive), or null if
+   * not analyzed yet.
+   */
+  @Nullable
+  private volatile Float sentimentScore;
+  /** Clients that run the analyses, or null in test mode. Not part of the JSON. */
+  @Nullable
+  private final transient AnalysisClients clients;
 
+  /** Creates an analysis without GCloud clients, which can only analyze in test mode. */
   public CommentAnalysis() {
-    imageLabels = new ArrayList<>();
+    this(null);
+  }
+
+  /** Creates an analysis that calls GCloud through the given shared clients. */
+  public CommentAnalysis(@Nullable AnalysisClients clients) {
+    this.clients = clients;
+  }
+
+  /** Creates a complete analysis from stored results. */
+  CommentAnalysis(List<ImageLabel> imageLabels, float sentimentScore) {
+    this(null);
+    this.imageLabels = imageLabels;
+    this.sentimentScore = sentimentScore;
   }
 
   /**
@@ -54,24 +83,30 @@ public class CommentAnalysis {
    * exist.
    */
   public void analyzeImage(Comment comment) throws IOException {
+    List<ImageLabel> labels = new ArrayList<>();
     if (Flags.IS_TEST) {
       // Add dummy data
-      imageLabels.add(new ImageLabel(comment.getName(), 1));
+      labels.add(new ImageLabel(comment.getName(), 1));
     } else {
       // Don't use ifPresent since exceptions don't behave well with lambda expressions
       if (comment.getBlobKey().isPresent()) {
-        byte[] imageBytes = getBlobBytes(comment.getBlobKey().get());
-        List<EntityAnnotation> labels = getImageLabels(imageBytes);
-        labels.stream().forEach(entity -> imageLabels.add(new ImageLabel(entity)));
+        ByteString imageBytes = getBlobBytes(comment.getBlobKey().get());
+        List<EntityAnnotation> entities =
+            getImageLabels(imageBytes, clients.getVisionBatcher());
+        if (entities != null) {
+          entities.stream().forEach(entity -> labels.add(new ImageLabel(entity)));
+        }
       }
     }
+    imageLabels = labels;
   }
 
   /** Same as analyzeText, just with a configurable GCloud api */
   void analyzeText(Comment comment, LanguageServiceClient client) {
     Document doc = Document.newBuilder().setContent(comment.getText())
         .setType(Document.Type.PLAIN_TEXT).build();
-    Sentiment sentiment = client.analyzeSentiment(doc).getDocumentSentiment();
+    Sentiment sentiment = Metrics.BACKEND_CALLS.time("language.sentiment",
+        () -> client.analyzeSentiment(doc)).getDocumentSentiment();
     this.sentimentScore = sentiment.getScore();
   }
 
@@ -79,18 +114,29 @@ public class CommentAnalysis {
   public void analyzeText(Comment comment) throws IOException {
     if (Flags.IS_TEST) {
       // Send dummy data
-      this.sentimentScore = 4;
+      this.sentimentScore = 4f;
     } else {
-      try (LanguageServiceClient languageServiceClient = LanguageServiceClient.create()) {
-        analyzeText(comment, languageServiceClient);
-      }
+      analyzeText(comment, clients.getLanguage());
     }
   }
 
+  /** Returns whether both analyses are done, so that this can be stored and reused. */
+  public boolean isComplete() {
+    return imageLabels != null && sentimentScore != null;
+  }
+
+  /** Returns whether the sentiment of the text is known. */
+  public boolean hasTextSentiment() {
+    return sentimentScore != null;
+  }
+
+  /** Returns the sentiment of the text. Only valid if {@link #hasTextSentiment()}. */
   public float getTextSentiment() {
     return sentimentScore;
   }
 
+  /** Returns the labels for the image, or null if it wasn't analyzed. */
+  @Nullable
   public List<ImageLabel> getImageLabels() {
     return imageLabels;
   }
@@ -101,52 +147,79 @@ public class CommentAnalysis {
     return gson.toJson(this);
   }
 
+  /** Reads part of a blob. */
+  @FunctionalInterface
+  interface BlobFetcher {
+    /** Returns the bytes from start to end, both inclusive, or fewer if the blob ends first. */
+    byte[] fetch(long start, long end) throws IOException;
+  }
+
   /**
    * Retrieve binary data from blobstore at the given url.
    */
-  private static byte[] getBlobBytes(BlobKey blobKey) throws IOException {
+  private static ByteString getBlobBytes(BlobKey blobKey) throws IOException {
+    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+    if (blobInfo == null) {
+      throw new IOException("Blob " + blobKey.getKeyString() + " no longer exists");
+    }
     BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
-
-    int fetchSize = BlobstoreService.MAX_BLOB_FETCH_SIZE;
-    long currentByteIndex = 0;
-    boolean continueReading = true;
-    while (continueReading) {
-      // End index is inclusive, so we have to subtract 1 to get fetchSize bytes
-      byte[] b =
-          blobstoreService.fetchData(blobKey, currentByteIndex, currentByteIndex + fetchSize - 1);
-      outputBytes.write(b);
+    return readBlob(blobInfo.getSize(), BlobstoreService.MAX_BLOB_FETCH_SIZE,
+        (start, end) -> Metrics.BACKEND_CALLS.time("blobstore.fetch",
+            () -> blobstoreService.fetchData(blobKey, start, end)));
+  }
 
+  /**
+   * Reads a blob of the given size, fetchSize bytes at a time, into a single array allocated up
+   * front. Each chunk is copied into it once and dropped, so reading an image takes little more
+   * memory than the image. Stops early if the blob turns out shorter than size.
+   */
+  static ByteString readBlob(long size, int fetchSize, BlobFetcher fetcher) throws IOException {
+    if (size < 0 || size > Integer.MAX_VALUE - 8) {
+      throw new IOException("Cannot read a blob of " + size + " bytes");
+    }
+    byte[] bytes = new byte[(int) size];
+    int read = 0;
+    while (read < bytes.length) {
+      int wanted = Math.min(fetchSize, bytes.length - read);
+      // End index is inclusive, so we have to subtract 1 to get wanted bytes
+      byte[] chunk = fetcher.fetch(read, read + wanted - 1);
+      int copied = Math.min(chunk.length, wanted);
+      System.arraycopy(chunk, 0, bytes, read, copied);
+      read += copied;
       // If we read fewer bytes than we requested, then we reached the end
-      if (b.length < fetchSize) {
-        continueReading = false;
+      if (copied < wanted) {
+        break;
       }
-
-      currentByteIndex += fetchSize;
     }
-
-    return outputBytes.toByteArray();
+    // Nothing else holds the array, so the ByteString can share it instead of copying it
+    return read == bytes.length ? UnsafeByteOperations.unsafeWrap(bytes)
+        : UnsafeByteOperations.unsafeWrap(bytes, 0, read);
   }
 
   /**
    * Uses the Google Cloud Vision API to generate a list of labels that apply to the given image.
+   * The request shares its call with those of other analyses running at the same time.
    */
-  private static List<EntityAnnotation> getImageLabels(byte[] imageBytes) throws IOException {
-    ByteString byteString = ByteString.copyFrom(imageBytes);
-    Image image = Image.newBuilder().setContent(byteString).build();
+  private static List<EntityAnnotation> getImageLabels(ByteString imageBytes,
+      VisionBatcher batcher) throws IOException {
+    Image image = Image.newBuilder().setContent(imageBytes).build();
 
     Feature feature = Feature.newBuilder().setType(Feature.Type.LABEL_DETECTION).build();
     AnnotateImageRequest request =
         AnnotateImageRequest.newBuilder().addFeatures(feature).setImage(image).build();
-    List<AnnotateImageRequest> requests = new ArrayList<>();
-    requests.add(request);
 
-    BatchAnnotateImagesResponse batchResponse;
-    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
-      batchResponse = client.batchAnnotateImages(requests);
+    CompletableFuture<AnnotateImageResponse> future = batcher.annotate(request);
+    AnnotateImageResponse imageResponse;
+    try {
+      imageResponse = future.get();
+    } catch (InterruptedException e) {
+      // The analysis was cancelled, so leave the image out of its batch if it isn't sent yet
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while labelling an image");
+    } catch (ExecutionException e) {
+      throw new IOException("Error labelling an image", e.getCause());
     }
-    List<AnnotateImageResponse> imageResponses = batchResponse.getResponsesList();
-    AnnotateImageResponse imageResponse = imageResponses.get(0);
 
     if (imageResponse.hasError()) {
       System.err.println("Error getting image labels: " + imageResponse.getError().getMessage());
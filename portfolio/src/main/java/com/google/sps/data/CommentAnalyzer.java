@@ -0,0 +1,118 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the image and text analyses of a comment at the same time, each with a deadline; if one
+ * misses it, the other's result is kept alone. Used both for requests and in the background.
+ */
+public class CommentAnalyzer {
+  /** How long to wait for each analysis by default. */
+  public static final long DEFAULT_DEADLINE_MS = 10000;
+  /** Most analyses running at once, across all callers. */
+  private static final int THREADS = 16;
+  /** Most analyses waiting for a thread. Past this, callers run their own. */
+  private static final int QUEUE_SIZE = 64;
+
+  /** Runs the analyses, so that a caller can wait for both at once. */
+  private static final ExecutorService SHARED_EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS,
+      60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("comment-analyzer-%d").build(),
+      // Slows callers down rather than letting the backlog grow without bound
+      new ThreadPoolExecutor.CallerRunsPolicy());
+
+  /** Shared by every analysis, or null in test mode. */
+  @Nullable
+  private final AnalysisClients clients;
+  private final ExecutorService executor;
+  private final long deadlineMs;
+
+  /** Creates an analyzer calling GCloud through clients, on a shared executor. */
+  public CommentAnalyzer(@Nullable AnalysisClients clients) {
+    this(clients, SHARED_EXECUTOR, DEFAULT_DEADLINE_MS);
+  }
+
+  public CommentAnalyzer(@Nullable AnalysisClients clients, ExecutorService executor,
+      long deadlineMs) {
+    this.clients = clients;
+    this.executor = executor;
+    this.deadlineMs = deadlineMs;
+  }
+
+  /** Analyzes comment. See {@link #analyze(Comment, CommentAnalysis)}. */
+  public CommentAnalysis analyze(Comment comment) throws IOException {
+    return analyze(comment, new CommentAnalysis(clients));
+  }
+
+  /**
+   * Runs both analyses of comment at once into analysis, waits for each until the deadline, and
+   * returns analysis. An analysis that misses the deadline is cancelled and left out of the
+   * results. Rethrows the first analysis error.
+   */
+  public CommentAnalysis analyze(Comment comment, CommentAnalysis analysis) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+    Future<?> image = executor.submit(() -> {
+      analysis.analyzeImage(comment);
+      return null;
+    });
+    Future<?> text = executor.submit(() -> {
+      analysis.analyzeText(comment);
+      return null;
+    });
+    try {
+      await(image, deadline, "Image", comment.getId());
+      await(text, deadline, "Text", comment.getId());
+    } finally {
+      // Does nothing to a finished analysis, and stops the other one if the first failed
+      image.cancel(true);
+      text.cancel(true);
+    }
+    return analysis;
+  }
+
+  /** Waits for analysis until deadline, in System.nanoTime() terms. */
+  private static void await(Future<?> analysis, long deadline, String kind, long commentId)
+      throws IOException {
+    try {
+      analysis.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      System.err.println(kind + " analysis of comment " + commentId
+          + " missed its deadline, so it is left out");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while analyzing comment " + commentId);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(kind + " analysis of comment " + commentId + " failed", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,244 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Comments stored column by column: one primitive array per field instead of one object per
+ * comment, with every text in a shared UTF-8 byte arena and every distinct author name stored
+ * once. A Comment is only built when {@link #get(int)} asks for one.
+ *
+ * <p>Used by CommentTimeline, which writes from a single thread at a time. A slot, and the arena
+ * bytes it points to, are written before any reader can know about them and never again, so
+ * readers don't lock. Methods that need more room return a grown copy and leave this instance
+ * untouched for readers that still use it.
+ */
+final class CommentColumns {
+  /** Marks a null text, or a null name in {@link #nameCodes}. */
+  private static final int NULL = -1;
+
+  private final long[] timestamps;
+  private final long[] ids;
+  /** Where each text starts in the arena. */
+  private final int[] textOffsets;
+  /** Length in bytes of each text, or {@link #NULL}. */
+  private final int[] textLengths;
+  /** Each name, as its position in the dictionary, or {@link #NULL}. */
+  private final int[] nameCodes;
+  /** Mostly null, like the fields they hold. */
+  private final String[] imageUrls;
+  private final String[] blobKeys;
+  /** Marks comments kept in Datastore, whose key is rebuilt from their ID. */
+  private final boolean[] keyed;
+  private final byte[] arena;
+  /** Number of arena bytes in use. Only read and written by the writer, like below. */
+  private int arenaSize;
+  private final NameDictionary names;
+
+  /**
+   * Distinct names, each stored once and shared by every copy of the columns. Names are never
+   * dropped, since they are few compared to comments.
+   */
+  private static final class NameDictionary {
+    /** Names by code. Codes below the count a reader knows of are never written again. */
+    private volatile String[] byCode = new String[16];
+    private int count;
+    /** Only used by the writer. */
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    private int intern(@Nullable String name) {
+      if (name == null) {
+        return NULL;
+      }
+      Integer code = codes.get(name);
+      if (code == null) {
+        if (count == byCode.length) {
+          byCode = Arrays.copyOf(byCode, count * 2);
+        }
+        code = count++;
+        byCode[code] = name;
+        codes.put(name, code);
+      }
+      return code;
+    }
+
+    @Nullable
+    private String get(int code) {
+      return code == NULL ? null : byCode[code];
+    }
+  }
+
+  /** Creates empty columns with room for the given number of comments and bytes of text. */
+  CommentColumns(int capacity, int arenaCapacity) {
+    this(capacity, new byte[arenaCapacity], new NameDictionary());
+  }
+
+  /** Creates empty slots over the given arena. */
+  private CommentColumns(int capacity, byte[] arena, NameDictionary names) {
+    this(new long[capacity], new long[capacity], new int[capacity], new int[capacity],
+        new int[capacity], new String[capacity], new String[capacity], new boolean[capacity],
+        arena, names);
+  }
+
+  private CommentColumns(long[] timestamps, long[] ids, int[] textOffsets, int[] textLengths,
+      int[] nameCodes, String[] imageUrls, String[] blobKeys, boolean[] keyed, byte[] arena,
+      NameDictionary names) {
+    this.timestamps = timestamps;
+    this.ids = ids;
+    this.textOffsets = textOffsets;
+    this.textLengths = textLengths;
+    this.nameCodes = nameCodes;
+    this.imageUrls = imageUrls;
+    this.blobKeys = blobKeys;
+    this.keyed = keyed;
+    this.arena = arena;
+    this.names = names;
+  }
+
+  /** Returns the number of slots. */
+  int capacity() {
+    return ids.length;
+  }
+
+  /** Returns the number of arena bytes in use. */
+  int arenaSize() {
+    return arenaSize;
+  }
+
+  long timestamp(int slot) {
+    return timestamps[slot];
+  }
+
+  long id(int slot) {
+    return ids[slot];
+  }
+
+  /** Builds the comment in slot. Each call returns a new, equal instance. */
+  Comment get(int slot) {
+    String text = textLengths[slot] == NULL ? null
+        : new String(arena, textOffsets[slot], textLengths[slot], StandardCharsets.UTF_8);
+    String blobKey = blobKeys[slot];
+    return new Comment(text, names.get(nameCodes[slot]), ids[slot],
+        keyed[slot] ? KeyFactory.createKey(Comment.KIND, ids[slot]) : null, timestamps[slot],
+        imageUrls[slot], blobKey == null ? null : new BlobKey(blobKey));
+  }
+
+  /**
+   * Stores comment in slot, and returns the columns to use from now on: these, or a copy with a
+   * bigger arena if the text didn't fit.
+   */
+  CommentColumns set(int slot, Comment comment) {
+    String text = comment.getText();
+    byte[] encoded = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    CommentColumns target = encoded == null ? this : withArenaRoom(encoded.length);
+    target.timestamps[slot] = comment.getTimestamp();
+    target.ids[slot] = comment.getId();
+    target.nameCodes[slot] = target.names.intern(comment.getName());
+    target.imageUrls[slot] = comment.getImageUrl().orElse(null);
+    target.blobKeys[slot] = comment.getBlobKey().map(BlobKey::getKeyString).orElse(null);
+    target.keyed[slot] = comment.getKey() != null;
+    if (encoded == null) {
+      target.textLengths[slot] = NULL;
+    } else {
+      System.arraycopy(encoded, 0, target.arena, target.arenaSize, encoded.length);
+      target.textOffsets[slot] = target.arenaSize;
+      target.textLengths[slot] = encoded.length;
+      target.arenaSize += encoded.length;
+    }
+    return target;
+  }
+
+  /**
+   * Copies the comment in slot of source to slot of these columns, text included, and returns the
+   * columns to use from now on.
+   */
+  CommentColumns copy(CommentColumns source, int sourceSlot, int slot) {
+    int length = source.textLengths[sourceSlot];
+    CommentColumns target = length == NULL ? this : withArenaRoom(length);
+    target.timestamps[slot] = source.timestamps[sourceSlot];
+    target.ids[slot] = source.ids[sourceSlot];
+    target.nameCodes[slot] = source.names == target.names ? source.nameCodes[sourceSlot]
+        : target.names.intern(source.names.get(source.nameCodes[sourceSlot]));
+    target.imageUrls[slot] = source.imageUrls[sourceSlot];
+    target.blobKeys[slot] = source.blobKeys[sourceSlot];
+    target.keyed[slot] = source.keyed[sourceSlot];
+    target.textLengths[slot] = length;
+    if (length != NULL) {
+      System.arraycopy(source.arena, source.textOffsets[sourceSlot], target.arena,
+          target.arenaSize, length);
+      target.textOffsets[slot] = target.arenaSize;
+      target.arenaSize += length;
+    }
+    return target;
+  }
+
+  /**
+   * Returns empty columns with the given room that share this instance's name dictionary, for
+   * rewriting the comments that are still live.
+   */
+  CommentColumns emptyCopy(int capacity, int arenaCapacity) {
+    return new CommentColumns(capacity, new byte[arenaCapacity], names);
+  }
+
+  /**
+   * Returns columns with the given number of empty slots that share this instance's arena and
+   * name dictionary, to be filled with {@link #copySlots} and {@link #set}. The arena can be
+   * shared since bytes in use never change.
+   */
+  CommentColumns withCapacity(int capacity) {
+    CommentColumns copy = new CommentColumns(capacity, arena, names);
+    copy.arenaSize = arenaSize;
+    return copy;
+  }
+
+  /**
+   * Copies count slots of source from sourceSlot on to these columns from slot on. Text isn't
+   * copied, only where it is, so these columns must come from source's {@link #withCapacity}, or
+   * from columns that did.
+   */
+  void copySlots(CommentColumns source, int sourceSlot, int slot, int count) {
+    System.arraycopy(source.timestamps, sourceSlot, timestamps, slot, count);
+    System.arraycopy(source.ids, sourceSlot, ids, slot, count);
+    System.arraycopy(source.textOffsets, sourceSlot, textOffsets, slot, count);
+    System.arraycopy(source.textLengths, sourceSlot, textLengths, slot, count);
+    System.arraycopy(source.nameCodes, sourceSlot, nameCodes, slot, count);
+    System.arraycopy(source.imageUrls, sourceSlot, imageUrls, slot, count);
+    System.arraycopy(source.blobKeys, sourceSlot, blobKeys, slot, count);
+    System.arraycopy(source.keyed, sourceSlot, keyed, slot, count);
+  }
+
+  /** Returns columns sharing these slots with room for needed more arena bytes. */
+  private CommentColumns withArenaRoom(int needed) {
+    long required = (long) arenaSize + needed;
+    if (required <= arena.length) {
+      return this;
+    }
+    if (required > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Comment text is over 2 GiB");
+    }
+    int arenaCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * arena.length));
+    CommentColumns copy = new CommentColumns(timestamps, ids, textOffsets, textLengths, nameCodes,
+        imageUrls, blobKeys, keyed, Arrays.copyOf(arena, arenaCapacity), names);
+    copy.arenaSize = arenaSize;
+    return copy;
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Hand-written JSON serializer for comments, so that pages can be streamed straight to a writer
+ * without reflection or building an intermediate String. Comments are only ever written, so it
+ * can't read them back. Stateless, so a single instance can be shared by every request.
+ *
+ * <p>Each property is written as reflective Gson used to write it, but the Datastore key and the
+ * BlobKey of the image are left out on purpose: comments.js reads neither, the ID already
+ * identifies the comment, and the BlobKey is only for deleting the image on the server.
+ */
+public class CommentJsonAdapter {
+  /** JSON property names. These match what reflective serialization used to produce. */
+  private static final String TEXT = "text";
+  private static final String NAME = "name";
+  private static final String TIMESTAMP = "timestamp";
+  private static final String ID = "id";
+  private static final String IMAGE_URL = "imageUrl";
+  /** Property that holds the contents of an Optional, which comments.js reads. */
+  private static final String OPTIONAL_VALUE = "value";
+
+  /** Writes comment to out as a JSON object, or null if comment is null. */
+  public void write(JsonWriter out, Comment comment) throws IOException {
+    if (comment == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(TEXT).value(comment.getText());
+    out.name(NAME).value(comment.getName());
+    out.name(TIMESTAMP).value(comment.getTimestamp());
+    out.name(ID).value(comment.getId());
+
+    out.name(IMAGE_URL).beginObject();
+    if (comment.getImageUrl().isPresent()) {
+      out.name(OPTIONAL_VALUE).value(comment.getImageUrl().get());
+    }
+    out.endObject();
+    out.endObject();
+  }
+
+  /** Writes the given comments as a JSON array to writer, then flushes it. */
+  public void writeList(List<Comment> comments, Writer writer) throws IOException {
+    JsonWriter out = new JsonWriter(writer);
+    // Same settings as the Gson defaults
+    out.setHtmlSafe(true);
+    out.setSerializeNulls(false);
+
+    out.beginArray();
+    for (Comment comment : comments) {
+      write(out, comment);
+    }
+    out.endArray();
+    out.flush();
+  }
+}
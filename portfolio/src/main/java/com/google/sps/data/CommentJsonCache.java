@@ -0,0 +1,99 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Memoizes the UTF-8 JSON encoding of each comment. Comments never change once created, so a page
+ * can be sent by copying the cached bytes of each comment onto the output stream. Total memory is
+ * bounded; the least recently used fragments are evicted first.
+ */
+public class CommentJsonCache {
+  /** Default limit on the total size of the cached fragments. */
+  public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+  private static final int ARRAY_START = '[';
+  private static final int ARRAY_END = ']';
+  private static final int SEPARATOR = ',';
+
+  private final CommentJsonAdapter adapter;
+  /** Encoded comments, keyed by ID. IDs are never reused, so entries never go stale. */
+  private final Cache<Long, byte[]> fragments;
+
+  public CommentJsonCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /** Creates a cache holding at most maxBytes of encoded comments. */
+  public CommentJsonCache(long maxBytes) {
+    adapter = new CommentJsonAdapter();
+    fragments = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+        .weigher((Long id, byte[] fragment) -> fragment.length).build();
+  }
+
+  /** Returns the UTF-8 JSON encoding of comment. The returned array must not be modified. */
+  public byte[] getFragment(Comment comment) {
+    byte[] fragment = fragments.getIfPresent(comment.getId());
+    if (fragment == null) {
+      // Two threads may encode the same comment at once, which is harmless
+      fragment = encode(comment);
+      fragments.put(comment.getId(), fragment);
+    }
+    return fragment;
+  }
+
+  /** Writes the given comments as a UTF-8 JSON array to out. */
+  public void writeList(List<Comment> comments, OutputStream out) throws IOException {
+    out.write(ARRAY_START);
+    for (int i = 0; i < comments.size(); i++) {
+      if (i > 0) {
+        out.write(SEPARATOR);
+      }
+      out.write(getFragment(comments.get(i)));
+    }
+    out.write(ARRAY_END);
+    out.flush();
+  }
+
+  /** Returns the number of comments whose encoding is cached. */
+  public long size() {
+    return fragments.size();
+  }
+
+  private byte[] encode(Comment comment) {
+    StringWriter writer = new StringWriter();
+    JsonWriter out = new JsonWriter(writer);
+    // Same settings as CommentJsonAdapter.writeList
+    out.setHtmlSafe(true);
+    out.setSerializeNulls(false);
+    try {
+      adapter.write(out, comment);
+      out.flush();
+    } catch (IOException e) {
+      // StringWriter never throws
+      throw new UncheckedIOException(e);
+    }
+    return writer.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.config.Flags;
+
+/**
+ * Append-only file of comments that were acknowledged but may not be in Datastore yet. Every
+ * append is forced to disk before it returns, so the log survives the process going down. Records
+ * are checksummed, and a record torn by a crash at the end of the file is dropped on recovery.
+ */
+public class CommentLog implements Closeable {
+  /** Bytes before each record body: its length, then its CRC-32. */
+  private static final int HEADER_BYTES = 8;
+
+  private final Path path;
+  private FileChannel channel;
+  /** Comments put and not deleted by the records found when the log was opened, oldest first. */
+  private final List<Comment> recovered;
+
+  /** Opens the log at path, creating it if needed, and recovers the records already in it. */
+  public CommentLog(Path path) throws IOException {
+    this.path = path;
+    channel = open(path);
+    recovered = recover();
+  }
+
+  private static FileChannel open(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /** Returns the comments that were logged, and not deleted, before the log was opened. */
+  public List<Comment> recovered() {
+    return recovered;
+  }
+
+  /** Durably records that comment was added. */
+  public synchronized void appendPut(Comment comment) throws IOException {
+    append(CommentRecord.encodePut(comment));
+  }
+
+  /** Durably records that the comment with the given ID was deleted. */
+  public synchronized void appendDelete(long id) throws IOException {
+    append(CommentRecord.encodeDelete(id));
+  }
+
+  /** Empties the log. Call once everything it holds is safely stored elsewhere. */
+  public synchronized void clear() throws IOException {
+    channel.truncate(0);
+    channel.position(0);
+    channel.force(false);
+  }
+
+  /** Returns the size of the log in bytes. */
+  public synchronized long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Replaces the log with one holding only puts of the given comments. Call once everything else
+   * it holds is safely stored elsewhere. The new log is written next to this one, then moved over
+   * it, so a crash leaves one or the other.
+   */
+  public synchronized void rewrite(Collection<Comment> live) throws IOException {
+    Path next = path.resolveSibling(path.getFileName() + ".next");
+    FileChannel previous = channel;
+    channel = FileChannel.open(next, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      for (Comment comment : live) {
+        append(CommentRecord.encodePut(comment));
+      }
+      Files.move(next, path, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // Keep appending to the old log, which still holds everything
+      channel.close();
+      channel = previous;
+      Files.deleteIfExists(next);
+      throw e;
+    }
+    previous.close();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  private void append(byte[] body) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + body.length);
+    record.putInt(body.length);
+    record.putInt(CommentRecord.checksum(body));
+    record.put(body);
+    record.flip();
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+    channel.force(false);
+  }
+
+  /**
+   * Reads every record from the start of the file, and cuts off anything after the last valid
+   * one so that new records don't land behind a torn one.
+   */
+  private List<Comment> recover() throws IOException {
+    Map<Long, Comment> live = new LinkedHashMap<>();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    long position = 0;
+    long size = channel.size();
+    while (position + HEADER_BYTES <= size) {
+      header.clear();
+      readFully(header, position);
+      int length = header.getInt(0);
+      if (length <= 0 || position + HEADER_BYTES + length > size) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length);
+      readFully(body, position + HEADER_BYTES);
+      if (CommentRecord.checksum(body.array()) != header.getInt(Integer.BYTES)) {
+        break;
+      }
+
+      CommentRecord record;
+      try {
+        record = CommentRecord.decode(body.array());
+      } catch (IOException e) {
+        break;
+      }
+      long id = record.getId();
+      if (record.isDelete()) {
+        live.remove(id);
+      } else {
+        CommentRecord.Fields fields = record.getFields();
+        Key key = Flags.IS_TEST ? null : KeyFactory.createKey(Comment.KIND, id);
+        live.put(id, new Comment(fields.text, fields.name, id, key, fields.timestamp,
+            fields.imageUrl, fields.blobKey));
+      }
+      position += HEADER_BYTES + length;
+    }
+
+    if (position < size) {
+      System.err.println("Dropping " + (size - position) + " torn bytes from the comment log");
+      channel.truncate(position);
+    }
+    channel.position(position);
+    return new ArrayList<>(live.values());
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Comment log ended unexpectedly");
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * A single page of comments, along with cursors to the pages on either side of it and the total
+ * number of comments across all pages.
+ */
+public class CommentPage {
+  private final List<Comment> comments;
+  /** Cursor to continue reading after this page. Empty if this is the last page. */
+  private final Optional<PageCursor> next;
+  /** Cursor to read the page before this one. Empty if this is the first page. */
+  private final Optional<PageCursor> previous;
+  /** Number of comments across every page, not just this one. */
+  private final int totalCount;
+
+  public CommentPage(List<Comment> comments, @Nullable PageCursor next,
+      @Nullable PageCursor previous, int totalCount) {
+    this.comments = comments;
+    this.next = Optional.ofNullable(next);
+    this.previous = Optional.ofNullable(previous);
+    this.totalCount = totalCount;
+  }
+
+  public List<Comment> getComments() {
+    return comments;
+  }
+
+  public Optional<PageCursor> getNext() {
+    return next;
+  }
+
+  public Optional<PageCursor> getPrevious() {
+    return previous;
+  }
+
+  public int getTotalCount() {
+    return totalCount;
+  }
+}
@@ -15,72 +15,313 @@
 package com.google.sps.data;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.stream.Collectors;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.images.ImagesService;
 import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.ServingUrlOptions;
 import com.google.common.collect.Lists;
-import com.google.gson.Gson;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.sps.config.Flags;
+import com.google.sps.metrics.Metrics;
 
 /**
- * Keeps track of persisted comments with ability to add/remove comments. This is a singleton.
+ * Keeps track of persisted comments with ability to add/remove comments. This is a singleton, and
+ * is safe to use from multiple servlet threads.
  */
 public class CommentPersistHelper {
   public enum SortMethod {
     ASCENDING, DESCENDING
   }
 
-  private final DatastoreService datastore;
-  private final List<Comment> comments;
+  /**
+   * What comments are ordered by. For TIME, ASCENDING lists the newest comment first, as it always
+   * has. For the other keys, ASCENDING lists the smallest key first: names from A to Z, the
+   * shortest comments, or the most negative sentiment. Only analyzed comments have a sentiment.
+   */
+  public enum SortKey {
+    TIME, NAME, LENGTH, SENTIMENT
+  }
+
+  /** Order of author names: case-insensitive, with case only breaking ties. */
+  private static final Comparator<String> NAME_ORDER =
+      String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+  /** Number of distinct filters whose results are cached. */
+  private static final int FILTER_CACHE_SIZE = 32;
+  /** How long to wait after a delete before compacting, so that bulk deletes share one pass. */
+  private static final long COMPACTION_DELAY_MS = 1000;
+  /**
+   * System property naming where comments are stored: "datastore" or "local". The default is
+   * "local" in test mode, and "datastore" otherwise.
+   */
+  static final String BACKEND_PROPERTY = "comments.backend";
+  static final String DATASTORE_BACKEND = "datastore";
+  static final String LOCAL_BACKEND = "local";
+  /** System property holding the file the local backend stores comments in. */
+  static final String LOCAL_PATH_PROPERTY = "comments.local.path";
+  private static final String DEFAULT_LOCAL_PATH =
+      Paths.get(System.getProperty("java.io.tmpdir"), "comments.db").toString();
+  /** Where new comments are logged in write-behind mode. */
+  private static final Path WRITE_BEHIND_LOG =
+      Paths.get(System.getProperty("java.io.tmpdir"), "comments.log");
+  /** How often other instances' changes are merged in, in delta-sync mode. */
+  private static final long SYNC_INTERVAL_MS = 5000;
+  /** Runs timeline compaction off the request threads. */
+  private static final ScheduledExecutorService COMPACTOR =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("comment-compactor").build());
+  /** Polls for other instances' changes, in delta-sync mode. */
+  private static final ScheduledExecutorService SYNCER =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("comment-sync").build());
+
+  /** Where comments are stored. Everything here is also cached in memory. */
+  private final CommentRepository repository;
+  /** Finds comments changed by other instances, or null if only this instance's are seen. */
+  @Nullable
+  private final CommentSync sync;
+  private final CommentTimeline comments;
+  /** Index used to answer filters without scanning every comment. */
+  private final TrigramIndex index;
+  /** Index used to rank comments for full-text searches. */
+  private final SearchIndex searchIndex;
+  /** Comments ordered by author name, then newest first. */
+  private final SortedIndex<String> byName;
+  /** Comments ordered by length of their text, then newest first. */
+  private final SortedIndex<Integer> byLength;
+  /** Analyzed comments ordered by sentiment, then newest first. */
+  private final SortedIndex<Float> bySentiment;
+  /** Sentiment of each analyzed comment, by ID. Guarded by itself, like bySentiment. */
+  private final Map<Long, Float> sentiments;
+  /** Results of recent filters, so that repeated searches skip the index until the next write. */
+  private final FilterResultCache filterResults;
+  /** Incremented after every change to the cached comments. */
+  private final AtomicLong generation;
+  /** Random, so that versions from different instances never match. */
+  private final long epoch;
+  /** True while a compaction is waiting to run. */
+  private final AtomicBoolean compactionScheduled;
+  /** Opens once every stored comment is in the cache. */
+  private final CountDownLatch loaded;
+  /** Where the analyses of comments are stored, or null if they aren't. */
+  @Nullable
+  private final AnalysisStore analyses;
+  /** Analyzes new comments in the background, or null if they are analyzed when asked for. */
+  @Nullable
+  private volatile AnalysisQueue analysisQueue;
 
   private static CommentPersistHelper instance;
 
-  private CommentPersistHelper() {
-    datastore = DatastoreServiceFactory.getDatastoreService();
-    comments = new ArrayList<>();
+  CommentPersistHelper(CommentRepository repository, @Nullable CommentSync sync) {
+    this(repository, sync, null);
+  }
+
+  CommentPersistHelper(CommentRepository repository, @Nullable CommentSync sync,
+      @Nullable AnalysisStore analyses) {
+    this.repository = repository;
+    this.sync = sync;
+    this.analyses = analyses;
+    comments = new CommentTimeline();
+    index = new TrigramIndex(comments);
+    searchIndex = new SearchIndex(comments);
+    byName = new SortedIndex<>(NAME_ORDER);
+    byLength = new SortedIndex<>(Comparator.naturalOrder());
+    bySentiment = new SortedIndex<>(Comparator.naturalOrder());
+    sentiments = new HashMap<>();
+    filterResults = new FilterResultCache(FILTER_CACHE_SIZE);
+    generation = new AtomicLong();
+    epoch = ThreadLocalRandom.current().nextLong();
+    compactionScheduled = new AtomicBoolean(false);
+    loaded = new CountDownLatch(1);
   }
 
   /**
-   * Returns the currently running instance of CommentPersistHelper. Comments are pre-loaded.
+   * Returns the currently running instance of CommentPersistHelper. Comments are loaded in the
+   * background, newest first, so the first call returns without waiting for them. Where they are
+   * stored is chosen by the {@value #BACKEND_PROPERTY} system property.
    */
-  public static CommentPersistHelper getInstance() {
+  public static synchronized CommentPersistHelper getInstance() {
     if (instance == null) {
-      instance = new CommentPersistHelper();
-      if (!Flags.IS_TEST) {
-        instance.loadComments();
-      }
+      // Test mode stores comments in a local file, and loads them back like any other backend
+      String backend = System.getProperty(BACKEND_PROPERTY,
+          Flags.IS_TEST ? LOCAL_BACKEND : DATASTORE_BACKEND);
+      // Other instances can only change comments in Datastore
+      boolean deltaSync = Flags.DELTA_SYNC && !Flags.IS_TEST && backend.equals(DATASTORE_BACKEND);
+      // The loader covers everything stored before now, and the sync everything after
+      CommentSync sync = deltaSync ? new CommentSync(DatastoreServiceFactory.getDatastoreService(),
+          System.currentTimeMillis()) : null;
+      instance = new CommentPersistHelper(openRepository(backend), sync,
+          openAnalysisStore(backend));
+      instance.startLoading();
     }
     return instance;
   }
 
-  /** Loads comments from persist storage and adds to the comments list. */
-  private void loadComments() {
-    Query query = new Query("Comment").addSort(Comment.COMMENT_TIMESTAMP, SortDirection.DESCENDING);
-    PreparedQuery results = datastore.prepare(query);
-    results.asList(FetchOptions.Builder.withDefaults()).forEach(entity -> {
-      comments.add(Comment.fromEntity(entity));
-    });
+  /** Opens the repository of the given backend. */
+  private static CommentRepository openRepository(String backend) {
+    switch (backend) {
+      case DATASTORE_BACKEND:
+        boolean writeBehind = Flags.WRITE_BEHIND && !Flags.IS_TEST;
+        return new DatastoreCommentRepository(DatastoreServiceFactory.getDatastoreService(),
+            writeBehind ? openWriteBehind() : null);
+      case LOCAL_BACKEND:
+        Path path = Paths.get(System.getProperty(LOCAL_PATH_PROPERTY, DEFAULT_LOCAL_PATH));
+        try {
+          return new LocalCommentRepository(path);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Error opening the comment file " + path, e);
+        }
+      default:
+        throw new IllegalArgumentException(backend + " is not a comment backend. Use "
+            + DATASTORE_BACKEND + " or " + LOCAL_BACKEND + ".");
+    }
+  }
+
+  /**
+   * Returns where the analyses of the given backend's comments are stored, or null to keep them in
+   * memory only. Analyses are keyed by comment ID, so they are stored only next to Datastore
+   * comments, whose IDs are never reused. The local backend numbers comments from its file, which
+   * may be reset, and a stored analysis could then be served for a new comment.
+   */
+  @Nullable
+  private static AnalysisStore openAnalysisStore(String backend) {
+    if (Flags.IS_TEST || !backend.equals(DATASTORE_BACKEND)) {
+      return null;
+    }
+    return new DatastoreAnalysisStore(DatastoreServiceFactory.getDatastoreService());
+  }
+
+  /** Returns the write-behind queue, or null if its log can't be opened. */
+  @Nullable
+  private static CommentWriteBehind openWriteBehind() {
+    try {
+      CommentLog log = new CommentLog(WRITE_BEHIND_LOG);
+      return new CommentWriteBehind(DatastoreServiceFactory.getDatastoreService(), log);
+    } catch (IOException e) {
+      System.err.println("Error opening the comment log, so comments are stored directly: "
+          + e.getMessage());
+      return null;
+    }
+  }
+
+  /** Starts loading the stored comments on a background thread. */
+  private void startLoading() {
+    // The loader won't find these, so cache them first
+    Metrics.BACKEND_CALLS.time("repository.recover", repository::recover)
+        .forEach(this::addToCache);
+    // Comments posted on this instance from now on reach the cache through addComment
+    long startedAt = System.currentTimeMillis();
+    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("comment-loader").build()
+        .newThread(() -> loadComments(startedAt)).start();
+  }
+
+  /**
+   * Loads the comments stored before startedAt, a chunk at a time and newest first, so that the
+   * first page can be served as soon as the first chunk is in.
+   */
+  private void loadComments(long startedAt) {
+    try {
+      Metrics.BACKEND_CALLS.run("repository.load",
+          () -> repository.load(startedAt, this::addLoadedChunk));
+    } catch (RuntimeException e) {
+      System.err.println("Error loading comments, so older ones will be missing: "
+          + e.getMessage());
+    } finally {
+      // Requests waiting for older comments must not hang, even if loading failed
+      finishLoading();
+      if (sync != null) {
+        SYNCER.scheduleWithFixedDelay(this::syncQuietly, 0, SYNC_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /** Runs {@link #sync()}, logging failures so that the next run still happens. */
+  private void syncQuietly() {
+    try {
+      sync();
+    } catch (RuntimeException e) {
+      System.err.println("Error syncing comments: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Merges the comments that other instances added or deleted since the last sync into the
+   * cache. Only the changes are read from Datastore, never the whole history.
+   */
+  void sync() {
+    CommentSync.Delta delta = sync.poll();
+    // Polls overlap, and this instance's own comments show up too
+    List<Comment> added = delta.getAdded().stream()
+        .filter(comment -> !comments.contains(comment.getId())).collect(Collectors.toList());
+    if (!added.isEmpty()) {
+      // Usually older than this instance's newest, so inserted in one copy rather than one each
+      comments.addAll(added);
+      added.forEach(this::addToIndexes);
+      generation.incrementAndGet();
+    }
+    removeFromCache(delta.getDeleted());
+  }
+
+  /**
+   * Makes a chunk of loaded comments visible to readers. Chunks are older than everything already
+   * cached, so each one goes into the free slots in front of the timeline, in time proportional to
+   * the chunk rather than to the whole timeline.
+   */
+  void addLoadedChunk(List<Comment> chunk) {
+    // Skip recovered comments that were cached before they reached storage
+    List<Comment> added = chunk.stream().filter(comment -> !comments.contains(comment.getId()))
+        .collect(Collectors.toList());
+    comments.addAll(added);
+    added.forEach(this::addToIndexes);
+    generation.incrementAndGet();
+  }
+
+  /** Marks every stored comment as loaded, releasing the requests waiting for them. */
+  void finishLoading() {
+    loaded.countDown();
+  }
+
+  private boolean isLoaded() {
+    return loaded.getCount() == 0;
+  }
+
+  /** Blocks until every stored comment is in the cache. */
+  private void awaitLoaded() {
+    Uninterruptibles.awaitUninterruptibly(loaded);
   }
 
   /**
@@ -92,7 +333,8 @@ public class CommentPersistHelper {
     }
 
     BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
+    Map<String, List<BlobKey>> blobs = Metrics.BACKEND_CALLS.time("blobstore.uploads",
+        () -> blobstoreService.getUploads(request));
     List<BlobKey> blobKeys = blobs.get("image");
 
     // User submitted form without selecting a file, so we can't get a BlobKey. (dev server)
@@ -115,54 +357,197 @@ public class CommentPersistHelper {
 
   /** Adds a new comment from the given HTTP POST. */
   public void addComment(HttpServletRequest request) {
-    Entity entity = new Entity("Comment");
-    entity.setProperty(Comment.COMMENT_TEXT, request.getParameter(Comment.COMMENT_TEXT));
-    entity.setProperty(Comment.COMMENT_NAME, request.getParameter(Comment.COMMENT_NAME));
-    entity.setProperty(Comment.COMMENT_TIMESTAMP, System.currentTimeMillis());
+    // Store the comment so it persists
+    String imageUrl = getUploadedFileUrl(request).orElse(null);
+    BlobKey blobKey = getBlobKey(request).orElse(null);
+    Comment comment = Metrics.BACKEND_CALLS.time("repository.add",
+        () -> repository.add(request.getParameter(Comment.COMMENT_TEXT),
+            request.getParameter(Comment.COMMENT_NAME), System.currentTimeMillis(), imageUrl,
+            blobKey));
+    addToCache(comment);
+    AnalysisQueue queue = analysisQueue;
+    if (queue != null) {
+      queue.submit(comment);
+    }
+  }
 
-    getUploadedFileUrl(request)
-        .ifPresent(url -> entity.setProperty(Comment.COMMENT_PICTURE_URL, url));
-    getBlobKey(request)
-        .ifPresent(blobKey -> entity.setProperty(Comment.COMMENT_PICTURE_BLOBKEY, blobKey));
+  /**
+   * Sets the queue that new comments are analyzed on, or null to stop analyzing them until they
+   * are asked for.
+   */
+  public void setAnalysisQueue(@Nullable AnalysisQueue analysisQueue) {
+    this.analysisQueue = analysisQueue;
+  }
 
-    if (!Flags.IS_TEST) {
-      // Store the comment so it persists
-      datastore.put(entity);
-    }
+  /** Returns every comment, newest first, waiting for them to be loaded if they aren't yet. */
+  public List<Comment> getAllComments() {
+    awaitLoaded();
+    return comments.asList(SortMethod.ASCENDING);
+  }
+
+  /** Makes the given comment visible to readers, without persisting it. */
+  void addToCache(Comment comment) {
+    // New comments are usually the newest, so this appends to the timeline
+    comments.add(comment);
+    addToIndexes(comment);
+    generation.incrementAndGet();
+  }
 
-    // Insert new comment at the beginning to preserve sort
-    comments.add(0, Comment.fromEntity(entity));
+  /** Adds a comment that was just added to the timeline to every index. */
+  private void addToIndexes(Comment comment) {
+    index.add(comment);
+    searchIndex.add(comment);
+    byName.add(nameOf(comment), comment.getTimestamp(), comment.getId());
+    byLength.add(lengthOf(comment), comment.getTimestamp(), comment.getId());
   }
 
   /** Deletes the given comment permanently. */
   public void deleteComment(long id) {
-    for (int i = 0; i < comments.size(); i++) {
-      Comment comment = comments.get(i);
-      if (comment.getId() == id) {
-        // Remove the comment from persistent storage and the comments list
-        comments.remove(i);
-
-        if (!Flags.IS_TEST) {
-          datastore.delete(comment.getKey());
-
-          // Remove the comment's image, if it exists
-          comment.getBlobKey().ifPresent(blobKey -> {
-            BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-            blobstoreService.delete(blobKey);
-          });
-          break;
+    deleteComments(Collections.singleton(id));
+  }
+
+  /**
+   * Deletes the given comments permanently. They leave the cache in one pass, and storage is
+   * updated with one batched call each for the comments, their analyses and their images.
+   * Comments that can't be removed from storage are put back in the cache, and are reported in
+   * the result.
+   */
+  public DeleteResult deleteComments(Collection<Long> ids) {
+    DeleteResult result = new DeleteResult();
+    if (!isLoaded() && ids.stream().anyMatch(id -> !comments.contains(id))) {
+      // Some may be older than anything loaded so far
+      awaitLoaded();
+    }
+    List<Comment> removed = removeFromCache(ids);
+    Set<Long> removedIds = new HashSet<>();
+    removed.forEach(comment -> removedIds.add(comment.getId()));
+    // When requests race, only the one that removed a comment from the cache deletes it
+    ids.stream().filter(id -> !removedIds.contains(id)).forEach(result::addNotFound);
+    if (removed.isEmpty()) {
+      return result;
+    }
+
+    List<Comment> failed =
+        Metrics.BACKEND_CALLS.time("repository.delete", () -> repository.delete(removed));
+    Set<Long> failedIds = new HashSet<>();
+    failed.forEach(comment -> {
+      failedIds.add(comment.getId());
+      result.addFailed(comment.getId());
+      // It's still in storage, so keep showing it
+      addToCache(comment);
+    });
+
+    // By ID, since distinct comments can be equal
+    List<Comment> deleted = removed.stream().filter(comment -> !failedIds.contains(comment.getId()))
+        .collect(Collectors.toList());
+    deleted.forEach(comment -> result.addDeleted(comment.getId()));
+    deleteAnalyses(deleted);
+    if (!Flags.IS_TEST) {
+      deleteImages(deleted, result);
+      recordDeletions(deleted);
+    }
+    return result;
+  }
+
+  /** Removes the comments with the given IDs from the cache, and returns those it had. */
+  private List<Comment> removeFromCache(Collection<Long> ids) {
+    List<Comment> removed = comments.removeAll(ids);
+    if (!removed.isEmpty()) {
+      index.removeAll(removed);
+      searchIndex.removeAll(removed);
+      for (Comment comment : removed) {
+        byName.remove(nameOf(comment), comment.getTimestamp(), comment.getId());
+        byLength.remove(lengthOf(comment), comment.getTimestamp(), comment.getId());
+      }
+      synchronized (sentiments) {
+        for (Comment comment : removed) {
+          Float sentiment = sentiments.remove(comment.getId());
+          if (sentiment != null) {
+            bySentiment.remove(sentiment, comment.getTimestamp(), comment.getId());
+          }
         }
       }
+      generation.incrementAndGet();
+      scheduleCompaction();
+    }
+    return removed;
+  }
+
+  /** Tells other instances about the given deleted comments, in delta-sync mode. */
+  private void recordDeletions(List<Comment> deleted) {
+    if (sync == null) {
+      return;
+    }
+    try {
+      sync.recordDeletions(deleted.stream().map(Comment::getId).collect(Collectors.toList()));
+    } catch (RuntimeException e) {
+      // They are gone from Datastore, so other instances drop them when they next reload
+      System.err.println("Error recording " + deleted.size() + " deletes: " + e.getMessage());
     }
   }
 
+  /** Deletes the stored analyses of the given comments with a single batch call. */
+  private void deleteAnalyses(List<Comment> deleted) {
+    if (analyses == null || deleted.isEmpty()) {
+      return;
+    }
+    List<Long> ids = deleted.stream().map(Comment::getId).collect(Collectors.toList());
+    try {
+      Metrics.BACKEND_CALLS.run("analyses.delete", () -> analyses.delete(ids));
+    } catch (RuntimeException e) {
+      // An orphaned analysis takes up space, but is never read again
+      System.err.println("Error deleting " + ids.size() + " analyses: " + e.getMessage());
+    }
+  }
+
+  /** Deletes the images attached to the given comments with a single batch call. */
+  private static void deleteImages(List<Comment> deleted, DeleteResult result) {
+    List<Comment> withImages = deleted.stream().filter(comment -> comment.getBlobKey().isPresent())
+        .collect(Collectors.toList());
+    if (withImages.isEmpty()) {
+      return;
+    }
+
+    BlobKey[] blobKeys =
+        withImages.stream().map(comment -> comment.getBlobKey().get()).toArray(BlobKey[]::new);
+    try {
+      BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+      Metrics.BACKEND_CALLS.run("blobstore.delete", () -> blobstoreService.delete(blobKeys));
+    } catch (RuntimeException e) {
+      System.err.println("Error deleting " + blobKeys.length + " images: " + e.getMessage());
+      withImages.forEach(comment -> result.addFailedImage(comment.getId()));
+    }
+  }
+
+  /**
+   * Reclaims the tombstones left by deletes on a background thread. Deletes that arrive before
+   * it runs are reclaimed by the same pass.
+   */
+  private void scheduleCompaction() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      COMPACTOR.schedule(() -> {
+        // Clear the flag first, so that a delete during compaction schedules another pass
+        compactionScheduled.set(false);
+        comments.compact();
+      }, COMPACTION_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Returns where the analyses of these comments are stored, or null if they aren't. */
+  @Nullable
+  public AnalysisStore getAnalysisStore() {
+    return analyses;
+  }
+
   /** Returns the given comment, found by its ID. */
   public Optional<Comment> getCommentById(long id) {
-    try {
-      return Optional.of(comments.stream().filter(c -> c.getId() == id).findFirst().get());
-    } catch (NoSuchElementException e) {
-      return Optional.empty();
+    Optional<Comment> comment = comments.get(id);
+    if (!comment.isPresent() && !isLoaded()) {
+      // It may be older than anything loaded so far
+      awaitLoaded();
+      comment = comments.get(id);
     }
+    return comment;
   }
 
   /**
@@ -174,7 +559,8 @@ public class CommentPersistHelper {
     }
 
     BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
+    Map<String, List<BlobKey>> blobs = Metrics.BACKEND_CALLS.time("blobstore.uploads",
+        () -> blobstoreService.getUploads(request));
     List<BlobKey> blobKeys = blobs.get("image");
 
     // User submitted form without selecting a file, so we can't get a URL.
@@ -214,60 +600,234 @@ public class CommentPersistHelper {
     }
   }
 
-  /** Returns only comments with either name or content containing filter. */
-  private List<Comment> filterList(String filter) {
+  /**
+   * Returns the comments with either name or content containing filter, ordered by sort. Results
+   * for a filter are cached until the next write, so a repeated search costs nothing. While
+   * comments are still loading, an unfiltered newest-first query returns only those loaded so far;
+   * any other query waits for the rest.
+   */
+  private List<Comment> query(SortMethod sort, @Nullable String filter) {
+    if (filter != null || sort == SortMethod.DESCENDING) {
+      // These need the oldest comments too
+      awaitLoaded();
+    }
     if (filter == null) {
       // Don't filter
-      return comments;
+      return comments.asList(sort);
     }
 
-    // Return comments that contain the filter string
-    return comments.stream().filter(c -> c.contains(filter)).collect(Collectors.toList());
+    // Read the generation first, so that a write racing with the search makes the result stale
+    long current = generation.get();
+    List<Comment> matches = filterResults.get(filter, current).orElse(null);
+    if (matches == null) {
+      matches = Collections.unmodifiableList(index.search(filter));
+      filterResults.put(filter, current, matches);
+    }
+    // Search results are newest first
+    return sort == SortMethod.ASCENDING ? matches : Lists.reverse(matches);
   }
 
   /**
-   * Stringifies the comments in the desired order, including pagination and filtering.
+   * Returns up to numberComments comments in the desired order, starting at paginationFrom. The
+   * page also holds the total number of comments that pass the filter.
    */
-  public String stringifyComments(int numberComments, SortMethod sort, int paginationFrom,
-      String filter) {
-    Gson gson = new Gson();
-    List<Comment> filteredList = filterList(filter);
-    List<Comment> send;
-    // List that will either be reversed or not, depending on the sort
-    List<Comment> readList = null;
+  public CommentPage getPage(int numberComments, SortMethod sort, int paginationFrom,
+      @Nullable String filter) {
+    List<Comment> ordered = query(sort, filter);
+    if (!isLoaded() && paginationFrom > ordered.size() - numberComments) {
+      // The page reaches past the comments loaded so far
+      awaitLoaded();
+      ordered = query(sort, filter);
+    }
 
     if (paginationFrom < 0) {
       paginationFrom = 0;
     }
-    if (paginationFrom > filteredList.size()) {
+    checkPaginationStart(paginationFrom, ordered.size());
+
+    // Make sure pagination doesn't go out of bounds
+    int paginationTo = Math.min(paginationFrom + numberComments, ordered.size());
+    return pageOf(ordered, paginationFrom, paginationTo);
+  }
+
+  /**
+   * Returns up to numberComments comments ordered by key in the desired direction, starting at
+   * paginationFrom. Orders other than time are kept up to date on every write, so a page takes
+   * O(log n + numberComments) instead of a sort; with a filter, only the matches are sorted. Pages
+   * in these orders have no cursors.
+   */
+  public CommentPage getPage(int numberComments, SortMethod sort, SortKey key,
+      int paginationFrom, @Nullable String filter) {
+    if (key == SortKey.TIME) {
+      return getPage(numberComments, sort, paginationFrom, filter);
+    }
+    paginationFrom = Math.max(0, paginationFrom);
+    List<Comment> page;
+    int total;
+    if (filter != null) {
+      List<Comment> ordered = sorted(query(SortMethod.ASCENDING, filter), sort, key);
+      total = ordered.size();
+      checkPaginationStart(paginationFrom, total);
+      page = ordered.subList(paginationFrom, Math.min(paginationFrom + numberComments, total));
+    } else {
+      // Every comment needs to be in the index
+      awaitLoaded();
+      SortedIndex<?> ordered = key == SortKey.NAME ? byName
+          : key == SortKey.LENGTH ? byLength : bySentiment;
+      total = ordered.size();
+      checkPaginationStart(paginationFrom, total);
+      page = new ArrayList<>();
+      for (long id : ordered.getPage(paginationFrom, numberComments,
+          sort == SortMethod.DESCENDING)) {
+        // May be gone already if it is being removed
+        comments.get(id).ifPresent(page::add);
+      }
+    }
+    return new CommentPage(page, null, null, total);
+  }
+
+  /** Returns matches ordered by key the same way as the indexes, in the desired direction. */
+  private List<Comment> sorted(List<Comment> matches, SortMethod sort, SortKey key) {
+    Comparator<Comment> order;
+    List<Comment> ordered;
+    if (key == SortKey.SENTIMENT) {
+      // Only analyzed comments have a place in this order
+      Map<Long, Float> scores = new HashMap<>();
+      synchronized (sentiments) {
+        matches.forEach(comment -> {
+          Float sentiment = sentiments.get(comment.getId());
+          if (sentiment != null) {
+            scores.put(comment.getId(), sentiment);
+          }
+        });
+      }
+      ordered = matches.stream().filter(comment -> scores.containsKey(comment.getId()))
+          .collect(Collectors.toList());
+      order = Comparator.comparing(comment -> scores.get(comment.getId()));
+    } else {
+      ordered = new ArrayList<>(matches);
+      order = key == SortKey.NAME ? Comparator.comparing(CommentPersistHelper::nameOf, NAME_ORDER)
+          : Comparator.comparingInt(CommentPersistHelper::lengthOf);
+    }
+    order = order.thenComparing(TrigramIndex.NEWEST_FIRST);
+    ordered.sort(sort == SortMethod.DESCENDING ? order.reversed() : order);
+    return ordered;
+  }
+
+  private static void checkPaginationStart(int paginationFrom, int total) {
+    if (paginationFrom > total) {
       throw new IllegalArgumentException("Error: Cannot paginate starting at " + paginationFrom
-          + " when there are only " + filteredList.size() + " comments!");
+          + " when there are only " + total + " comments!");
     }
+  }
 
-    if (sort == SortMethod.ASCENDING) {
-      readList = filteredList;
-    } else if (sort == SortMethod.DESCENDING) {
-      // Comments is already sorted, so just reverse
-      readList = Lists.reverse(filteredList);
+  /** Returns the key a comment is ordered by for {@link SortKey#NAME}. */
+  private static String nameOf(Comment comment) {
+    return Objects.toString(comment.getName(), "");
+  }
+
+  /** Returns the key a comment is ordered by for {@link SortKey#LENGTH}, in characters. */
+  private static int lengthOf(Comment comment) {
+    String text = comment.getText();
+    return text == null ? 0 : text.codePointCount(0, text.length());
+  }
+
+  /**
+   * Records the sentiment that analysis found for the comment with the given ID, so that comments
+   * can be ordered by it. Does nothing if there is no such comment, or if it already has that
+   * sentiment, so that recording it again leaves the version unchanged.
+   */
+  public void recordSentiment(long id, float sentiment) {
+    Optional<Comment> comment = comments.get(id);
+    if (!comment.isPresent()) {
+      return;
     }
+    long timestamp = comment.get().getTimestamp();
+    synchronized (sentiments) {
+      // Deletes leave the timeline before they clear sentiments, so this can't resurrect one
+      if (!comments.contains(id)) {
+        return;
+      }
+      Float previous = sentiments.put(id, sentiment);
+      if (previous != null) {
+        if (previous == sentiment) {
+          // Nothing changed, so pages and their ETags stay valid
+          return;
+        }
+        bySentiment.remove(previous, timestamp, id);
+      }
+      bySentiment.add(sentiment, timestamp, id);
+      generation.incrementAndGet();
+    }
+  }
 
-    int paginationTo = numberComments + paginationFrom;
-    // Make sure pagination doesn't go out of bounds
-    if (paginationTo > filteredList.size()) {
-      paginationTo = filteredList.size();
+  /**
+   * Returns up to numberComments comments in the desired order, starting right after the given
+   * cursor. When backwards is true, returns the comments that come right before the cursor instead,
+   * still in the desired order. Finding the cursor takes O(log n). The page also holds the total
+   * number of comments that pass the filter.
+   */
+  public CommentPage getPage(int numberComments, SortMethod sort, @Nullable PageCursor cursor,
+      boolean backwards, @Nullable String filter) {
+    List<Comment> ordered = query(sort, filter);
+    int from;
+    int to;
+    if (backwards) {
+      to = cursor == null ? ordered.size()
+          : CommentTimeline.positionOf(ordered, sort, cursor.getTimestamp(), cursor.getId());
+      from = Math.max(0, to - numberComments);
+    } else {
+      from = cursor == null ? 0
+          : CommentTimeline.positionAfter(ordered, sort, cursor.getTimestamp(), cursor.getId());
+      to = Math.min(ordered.size(), from + numberComments);
+    }
+    if (to == ordered.size() && !isLoaded()) {
+      // The page reaches past the comments loaded so far
+      awaitLoaded();
+      return getPage(numberComments, sort, cursor, backwards, filter);
+    }
+    return pageOf(ordered, from, to);
+  }
+
+  /** Returns the comments of ordered in [from, to), with cursors to the surrounding pages. */
+  private static CommentPage pageOf(List<Comment> ordered, int from, int to) {
+    List<Comment> page = ordered.subList(from, to);
+    if (page.isEmpty()) {
+      return new CommentPage(page, null, null, ordered.size());
     }
-    send = readList.subList(paginationFrom, paginationTo);
+    PageCursor next = to < ordered.size() ? PageCursor.of(ordered.get(to - 1)) : null;
+    PageCursor previous = from > 0 ? PageCursor.of(ordered.get(from)) : null;
+    return new CommentPage(page, next, previous, ordered.size());
+  }
 
-    return gson.toJson(send);
+  /**
+   * Returns up to limit comments matching query, ranked by relevance, with the total number of
+   * matches. See SearchIndex for how queries are matched.
+   */
+  public CommentPage search(String query, int limit) {
+    // Every comment needs to be ranked
+    awaitLoaded();
+    return searchIndex.search(query, limit);
   }
 
-  /** Returns the total number of comments that are stored. */
+  /**
+   * Returns a version of the cached comments. It changes after every write, so two equal versions
+   * mean every query has the same answer. Versions from different instances never match.
+   */
+  public String getVersion() {
+    return Long.toHexString(epoch) + "." + generation.get();
+  }
+
+  /**
+   * Returns the total number of comments that are stored. While comments are still loading, this
+   * counts only those loaded so far.
+   */
   public int getNumberComments() {
     return comments.size();
   }
 
   /** Returns the total number of comments that correspond to the given filter. */
   public int getNumberComments(String filter) {
-    return filterList(filter).size();
+    return query(SortMethod.ASCENDING, filter).size();
   }
 }
@@ -0,0 +1,161 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * One entry of an append-only comment file: either a comment that was added, or the ID of one
+ * that was deleted. Shared by CommentLog and LocalCommentRepository, which frame each encoded
+ * record with its length and {@link #checksum}.
+ */
+class CommentRecord {
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private final long id;
+  /** The added comment, or null if this records a delete. */
+  @Nullable
+  private final Fields fields;
+
+  /** Everything about an added comment except its ID and key, which depend on where it lives. */
+  static class Fields {
+    final long timestamp;
+    final String name;
+    final String text;
+    @Nullable
+    final String imageUrl;
+    @Nullable
+    final BlobKey blobKey;
+
+    private Fields(long timestamp, String name, String text, @Nullable String imageUrl,
+        @Nullable BlobKey blobKey) {
+      this.timestamp = timestamp;
+      this.name = name;
+      this.text = text;
+      this.imageUrl = imageUrl;
+      this.blobKey = blobKey;
+    }
+  }
+
+  private CommentRecord(long id, @Nullable Fields fields) {
+    this.id = id;
+    this.fields = fields;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  boolean isDelete() {
+    return fields == null;
+  }
+
+  /** Returns the added comment's fields. Must not be called on a delete. */
+  Fields getFields() {
+    return fields;
+  }
+
+  /** Returns the body of a record that comment was added. */
+  static byte[] encodePut(Comment comment) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    try {
+      body.writeByte(PUT);
+      body.writeLong(comment.getId());
+      body.writeLong(comment.getTimestamp());
+      writeString(body, comment.getName());
+      writeString(body, comment.getText());
+      writeString(body, comment.getImageUrl().orElse(null));
+      writeString(body, comment.getBlobKey().map(BlobKey::getKeyString).orElse(null));
+    } catch (IOException e) {
+      // ByteArrayOutputStream never throws
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Returns the body of a record that the comment with the given ID was deleted. */
+  static byte[] encodeDelete(long id) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    try {
+      body.writeByte(DELETE);
+      body.writeLong(id);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Decodes a record body. Throws IOException if it isn't a valid record. */
+  static CommentRecord decode(byte[] body) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    byte type = in.readByte();
+    long id = in.readLong();
+    if (type == DELETE) {
+      return new CommentRecord(id, null);
+    }
+    if (type != PUT) {
+      throw new IOException("Unknown comment record type " + type);
+    }
+    long timestamp = in.readLong();
+    String name = readString(in);
+    String text = readString(in);
+    String imageUrl = readString(in);
+    String blobKey = readString(in);
+    return new CommentRecord(id, new Fields(timestamp, name, text, imageUrl,
+        blobKey == null ? null : new BlobKey(blobKey)));
+  }
+
+  /** Returns the CRC-32 of a record body, as stored next to it. */
+  static int checksum(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    return (int) crc.getValue();
+  }
+
+  /** Writes a nullable string of any length as UTF-8. */
+  private static void writeString(DataOutputStream out, @Nullable String value)
+      throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @Nullable
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
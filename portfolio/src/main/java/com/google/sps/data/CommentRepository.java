@@ -0,0 +1,52 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * Persistent storage for comments. CommentPersistHelper keeps every comment in memory and only
+ * comes here to load them at startup and to make changes durable, so implementations don't need
+ * to answer queries.
+ */
+public interface CommentRepository {
+  /** Stores a new comment, and returns it with the ID this repository gave it. */
+  Comment add(String text, String name, long timestamp, @Nullable String imageUrl,
+      @Nullable BlobKey blobKey);
+
+  /**
+   * Deletes the given comments. Deleting a comment that isn't stored is not an error. Returns the
+   * comments that are still stored because deleting them failed.
+   */
+  List<Comment> delete(List<Comment> comments);
+
+  /**
+   * Passes every comment stored before the given time to consumer, a chunk at a time and newest
+   * first. Throws if reading fails partway; the chunks passed until then are still valid.
+   */
+  void load(long before, Consumer<List<Comment>> consumer);
+
+  /**
+   * Makes comments accepted before a restart loadable, if any are pending, and returns those that
+   * still aren't. Called once, before {@link #load}.
+   */
+  default List<Comment> recover() {
+    return Collections.emptyList();
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+
+/**
+ * Finds the comments that any instance added or deleted since the last poll, so that each
+ * instance can keep its cache current without reloading it. New comments are found by timestamp.
+ * A deleted entity can't be queried, so every delete also stores a marker entity.
+ */
+public class CommentSync {
+  /** Datastore kind of deletion markers. */
+  static final String DELETION_KIND = "CommentDeletion";
+  /** Key for the ID of the deleted comment. */
+  static final String DELETED_ID = "commentId";
+  /** Key for the time of the delete. */
+  static final String DELETED_AT = "timestamp";
+  /**
+   * How far before the high-water mark each poll looks. Comments are timestamped before they are
+   * stored, instance clocks differ, and queries are eventually consistent, so writes can show up
+   * a little behind ones already seen. Repeats are harmless.
+   */
+  static final long OVERLAP_MS = 10 * 1000;
+  /** How long deletion markers are kept. Instances poll far more often than this. */
+  static final long MARKER_TTL_MS = 24 * 60 * 60 * 1000;
+  /**
+   * How often each instance purges expired markers. A small fraction of their lifetime, so that
+   * few pile up, without a query and a delete on every poll.
+   */
+  static final long PURGE_INTERVAL_MS = 60 * 60 * 1000;
+
+  /** Changes found by one poll. Either list may repeat changes found by earlier polls. */
+  public static class Delta {
+    private final List<Comment> added;
+    private final List<Long> deleted;
+
+    private Delta(List<Comment> added, List<Long> deleted) {
+      this.added = added;
+      this.deleted = deleted;
+    }
+
+    /** Returns the new comments, oldest first. */
+    public List<Comment> getAdded() {
+      return added;
+    }
+
+    /** Returns the IDs of the deleted comments. */
+    public List<Long> getDeleted() {
+      return deleted;
+    }
+  }
+
+  private final DatastoreService datastore;
+  /** Newest comment timestamp seen so far. Guarded by this. */
+  private long commentsSeen;
+  /** Newest deletion timestamp seen so far. Guarded by this. */
+  private long deletionsSeen;
+  /** When expired markers were last purged, or 0 if never. Guarded by this. */
+  private long lastPurge;
+
+  /** Creates a sync that reports changes made from since onwards. */
+  public CommentSync(DatastoreService datastore, long since) {
+    this.datastore = datastore;
+    commentsSeen = since;
+    deletionsSeen = since;
+  }
+
+  /** Returns the comments added and deleted since the last poll. */
+  public synchronized Delta poll() {
+    List<Comment> added = new ArrayList<>();
+    Query comments = new Query(Comment.KIND)
+        .setFilter(new FilterPredicate(Comment.COMMENT_TIMESTAMP,
+            FilterOperator.GREATER_THAN_OR_EQUAL, commentsSeen - OVERLAP_MS))
+        .addSort(Comment.COMMENT_TIMESTAMP, SortDirection.ASCENDING);
+    for (Entity entity : datastore.prepare(comments).asIterable()) {
+      Comment comment = Comment.fromEntity(entity);
+      added.add(comment);
+      commentsSeen = Math.max(commentsSeen, comment.getTimestamp());
+    }
+
+    List<Long> deleted = new ArrayList<>();
+    Query deletions = new Query(DELETION_KIND).setFilter(new FilterPredicate(DELETED_AT,
+        FilterOperator.GREATER_THAN_OR_EQUAL, deletionsSeen - OVERLAP_MS));
+    for (Entity marker : datastore.prepare(deletions).asIterable()) {
+      deleted.add((long) marker.getProperty(DELETED_ID));
+      deletionsSeen = Math.max(deletionsSeen, (long) marker.getProperty(DELETED_AT));
+    }
+
+    long now = System.currentTimeMillis();
+    if (now - lastPurge >= PURGE_INTERVAL_MS) {
+      // Before purging, so that a failing purge isn't retried on every poll
+      lastPurge = now;
+      purgeExpiredMarkers(now);
+    }
+    return new Delta(added, deleted);
+  }
+
+  /** Stores a deletion marker for each of the given comments, with one batch put. */
+  public void recordDeletions(Collection<Long> ids) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    List<Entity> markers = ids.stream().map(id -> {
+      Entity marker = new Entity(DELETION_KIND);
+      marker.setProperty(DELETED_ID, id);
+      marker.setProperty(DELETED_AT, now);
+      return marker;
+    }).collect(Collectors.toList());
+    datastore.put(markers);
+  }
+
+  /** Deletes the markers that every running instance has seen by now. */
+  private void purgeExpiredMarkers(long now) {
+    Query expired = new Query(DELETION_KIND).setKeysOnly().setFilter(new FilterPredicate(
+        DELETED_AT, FilterOperator.LESS_THAN, now - MARKER_TTL_MS));
+    List<Key> keys = new ArrayList<>();
+    datastore.prepare(expired).asIterable().forEach(marker -> keys.add(marker.getKey()));
+    if (!keys.isEmpty()) {
+      datastore.delete(keys);
+    }
+  }
+}
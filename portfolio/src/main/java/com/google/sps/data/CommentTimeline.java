@@ -0,0 +1,512 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.StampedLock;
+import com.google.sps.data.CommentPersistHelper.SortMethod;
+
+/**
+ * Thread-safe list of comments ordered by (timestamp, id). Writers are serialized, while readers
+ * never lock: they work on an immutable snapshot that is published through a volatile field.
+ * Adding comments newer or older than all others is amortized O(1) per comment, since the backing
+ * arrays keep free slots at both ends, and both positional and keyed access are available in
+ * either sort direction.
+ *
+ * <p>Comments can also be found and removed by ID in O(1). Removal only leaves a tombstone behind;
+ * {@link #compact()} reclaims tombstones later, away from the request thread.
+ *
+ * <p>Comments are kept in {@link CommentColumns} rather than as objects, which takes a fraction of
+ * the memory. Every comment handed out is built on demand, so callers get equal but not identical
+ * instances from one call to the next.
+ */
+public class CommentTimeline {
+  /** Capacity of the backing array before the first append. */
+  private static final int INITIAL_CAPACITY = 16;
+  /** Bytes of comment text the backing arena holds before it first grows. */
+  private static final int INITIAL_ARENA_BYTES = 1024;
+  /**
+   * Added to a slot to get the position kept for it in slotsById. Prepending lowers the positions
+   * of new comments, so they start high enough never to go negative.
+   */
+  private static final int INITIAL_BIAS = 1 << 30;
+
+  /**
+   * Comments at one point in time, oldest first, in the slots from start on. Slots in use are
+   * never written again, so a snapshot can be read without locking even while writers fill free
+   * slots at either end.
+   */
+  private static final class Snapshot {
+    private final CommentColumns columns;
+    /**
+     * Marks slots whose comment was removed. Shared with later snapshots, which may set more
+     * flags, so a snapshot with no tombstones of its own ignores it.
+     */
+    private final boolean[] dead;
+    /** First slot in use. The free slots below it take comments older than all others. */
+    private final int start;
+    /** Number of slots in use, tombstones included. */
+    private final int size;
+    private final int deadCount;
+    /**
+     * Position in slotsById minus slot. Changes whenever every slot moves by the same amount, so
+     * that moving the slots doesn't mean rewriting the map.
+     */
+    private final int bias;
+    /** Slots of the live comments, oldest first. Built on first use if there are tombstones. */
+    private volatile int[] liveSlots;
+
+    private Snapshot(CommentColumns columns, boolean[] dead, int start, int size, int deadCount,
+        int bias) {
+      this.columns = columns;
+      this.dead = dead;
+      this.start = start;
+      this.size = size;
+      this.deadCount = deadCount;
+      this.bias = bias;
+    }
+
+    /** Returns the first slot past the ones in use. */
+    private int end() {
+      return start + size;
+    }
+
+    private int[] liveSlots() {
+      int[] slots = liveSlots;
+      if (slots == null) {
+        // Racing readers may both build this, which is harmless
+        int[] found = new int[size];
+        int count = 0;
+        for (int slot = start; slot < end(); slot++) {
+          if (!dead[slot]) {
+            found[count++] = slot;
+          }
+        }
+        slots = Arrays.copyOf(found, count);
+        liveSlots = slots;
+      }
+      return slots;
+    }
+  }
+
+  private volatile Snapshot snapshot;
+  /** Maps the ID of every live comment to its slot plus the bias of the current snapshot. */
+  private volatile LongIntHashMap slotsById;
+  /** Lets readers of slotsById detect a racing writer without taking a lock. */
+  private final StampedLock indexLock;
+
+  public CommentTimeline() {
+    snapshot = new Snapshot(new CommentColumns(INITIAL_CAPACITY, INITIAL_ARENA_BYTES),
+        new boolean[INITIAL_CAPACITY], 0, 0, 0, INITIAL_BIAS);
+    slotsById = new LongIntHashMap();
+    indexLock = new StampedLock();
+  }
+
+  /**
+   * Inserts the given comment in timestamp order. This is O(1) amortized when the comment is the
+   * newest, which is the case for every freshly posted comment, or the oldest.
+   */
+  public void add(Comment comment) {
+    addAll(Collections.singletonList(comment));
+  }
+
+  /**
+   * Inserts every given comment in timestamp order. Takes O(k) amortized for k comments that are
+   * all newer or all older than the ones already here, such as a page of older comments being
+   * loaded. Otherwise the slots are copied once with the new comments in place, and only the IDs
+   * of the comments that moved are updated. Tombstones stay until the next {@link #compact()}.
+   */
+  public synchronized void addAll(Collection<Comment> added) {
+    if (added.isEmpty()) {
+      return;
+    }
+    Comment[] sorted = added.toArray(new Comment[0]);
+    Arrays.sort(sorted, (a, b) -> compareTo(a.getTimestamp(), a.getId(), b.getTimestamp(),
+        b.getId()));
+
+    Snapshot current = snapshot;
+    Comment first = sorted[0];
+    Comment last = sorted[sorted.length - 1];
+    if (lowerBound(current.columns, current.start, current.end(), first.getTimestamp(),
+        first.getId()) == current.end()) {
+      append(current, sorted);
+    } else if (lowerBound(current.columns, current.start, current.end(), last.getTimestamp(),
+        last.getId()) == current.start) {
+      prepend(current, sorted);
+    } else {
+      insert(current, sorted);
+    }
+  }
+
+  /** Adds comments newer than every current one, in order, after the slots in use. */
+  private void append(Snapshot current, Comment[] sorted) {
+    CommentColumns columns = current.columns;
+    boolean[] dead = current.dead;
+    int end = current.end();
+    int needed = end + sorted.length;
+    if (needed > columns.capacity()) {
+      int capacity = Math.max(needed, columns.capacity() * 2);
+      CommentColumns grown = columns.withCapacity(capacity);
+      grown.copySlots(columns, current.start, current.start, current.size);
+      columns = grown;
+      dead = Arrays.copyOf(dead, capacity);
+    }
+    // Slots are past the end of every published snapshot, so readers can't see these writes yet
+    for (int i = 0; i < sorted.length; i++) {
+      columns = columns.set(end + i, sorted[i]);
+    }
+    publish(new Snapshot(columns, dead, current.start, current.size + sorted.length,
+        current.deadCount, current.bias), end, needed);
+  }
+
+  /** Adds comments older than every current one, in order, before the slots in use. */
+  private void prepend(Snapshot current, Comment[] sorted) {
+    CommentColumns columns = current.columns;
+    boolean[] dead = current.dead;
+    int start = current.start;
+    int bias = current.bias;
+    if (start < sorted.length) {
+      // Leaves as much room again in front, so that a series of prepends takes O(1) each
+      int room = Math.max(INITIAL_CAPACITY, current.size + sorted.length);
+      int shift = room + sorted.length - start;
+      int capacity = columns.capacity() + shift;
+      CommentColumns moved = columns.withCapacity(capacity);
+      moved.copySlots(columns, start, start + shift, current.size);
+      columns = moved;
+      boolean[] movedDead = new boolean[capacity];
+      System.arraycopy(dead, start, movedDead, start + shift, current.size);
+      dead = movedDead;
+      start += shift;
+      // Keeps the positions in slotsById pointing at the same comments
+      bias -= shift;
+    }
+    // Slots are before the start of every published snapshot, so readers can't see these yet
+    int newStart = start - sorted.length;
+    for (int i = 0; i < sorted.length; i++) {
+      columns = columns.set(newStart + i, sorted[i]);
+    }
+    publish(new Snapshot(columns, dead, newStart, current.size + sorted.length,
+        current.deadCount, bias), newStart, start);
+  }
+
+  /**
+   * Adds comments that go among the current ones. Copies the slots, opening a gap for each new
+   * comment, and moves the later slots' positions in slotsById.
+   */
+  private void insert(Snapshot current, Comment[] sorted) {
+    CommentColumns columns = current.columns;
+    int end = current.end();
+    int capacity = columns.capacity();
+    if (end + sorted.length > capacity) {
+      capacity = Math.max(end + sorted.length, capacity * 2);
+    }
+    // Slots before the first new comment keep their place
+    int from = lowerBound(columns, current.start, end, sorted[0].getTimestamp(),
+        sorted[0].getId());
+    CommentColumns merged = columns.withCapacity(capacity);
+    boolean[] dead = new boolean[capacity];
+    merged.copySlots(columns, current.start, current.start, from - current.start);
+    System.arraycopy(current.dead, current.start, dead, current.start, from - current.start);
+
+    // Copy rather than shift slots that readers may be looking at
+    int slot = from;
+    int next = from;
+    for (Comment comment : sorted) {
+      int before = lowerBound(columns, slot, end, comment.getTimestamp(), comment.getId());
+      merged.copySlots(columns, slot, next, before - slot);
+      System.arraycopy(current.dead, slot, dead, next, before - slot);
+      next += before - slot;
+      slot = before;
+      merged = merged.set(next++, comment);
+    }
+    merged.copySlots(columns, slot, next, end - slot);
+    System.arraycopy(current.dead, slot, dead, next, end - slot);
+
+    publish(new Snapshot(merged, dead, current.start, current.size + sorted.length,
+        current.deadCount, current.bias), from, end + sorted.length);
+  }
+
+  /**
+   * Records the slots from one slot to another of next in slotsById, skipping tombstones, then
+   * makes next the current snapshot.
+   */
+  private void publish(Snapshot next, int from, int to) {
+    long stamp = indexLock.writeLock();
+    try {
+      for (int slot = from; slot < to; slot++) {
+        if (!next.dead[slot]) {
+          slotsById.put(next.columns.id(slot), slot + next.bias);
+        }
+      }
+      snapshot = next;
+    } finally {
+      indexLock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes the comment with the given ID in O(1), and returns it. Returns empty if there was no
+   * such comment.
+   */
+  public Optional<Comment> remove(long id) {
+    List<Comment> removed = removeAll(Collections.singleton(id));
+    return removed.isEmpty() ? Optional.empty() : Optional.of(removed.get(0));
+  }
+
+  /**
+   * Removes every comment with one of the given IDs in O(1) each, publishing a single new
+   * snapshot. Returns the removed comments; IDs without a comment are skipped.
+   */
+  public synchronized List<Comment> removeAll(Collection<Long> ids) {
+    Snapshot current = snapshot;
+    List<Comment> removed = new ArrayList<>();
+    long stamp = indexLock.writeLock();
+    try {
+      for (long id : ids) {
+        int position = slotsById.remove(id);
+        if (position != LongIntHashMap.NOT_FOUND) {
+          int slot = position - current.bias;
+          current.dead[slot] = true;
+          removed.add(current.columns.get(slot));
+        }
+      }
+      if (!removed.isEmpty()) {
+        snapshot = new Snapshot(current.columns, current.dead, current.start, current.size,
+            current.deadCount + removed.size(), current.bias);
+      }
+      return removed;
+    } finally {
+      indexLock.unlockWrite(stamp);
+    }
+  }
+
+  /** Returns the comment with the given ID in O(1), or empty if there is none. */
+  public Optional<Comment> get(long id) {
+    long stamp = indexLock.tryOptimisticRead();
+    Snapshot current = snapshot;
+    int position = slotsById.get(id);
+    if (!indexLock.validate(stamp)) {
+      // A writer got in the way, so read again under the lock
+      stamp = indexLock.readLock();
+      try {
+        current = snapshot;
+        position = slotsById.get(id);
+      } finally {
+        indexLock.unlockRead(stamp);
+      }
+    }
+    if (position == LongIntHashMap.NOT_FOUND) {
+      return Optional.empty();
+    }
+    return Optional.of(current.columns.get(position - current.bias));
+  }
+
+  /** Returns whether there is a comment with the given ID, without building it. */
+  public boolean contains(long id) {
+    long stamp = indexLock.tryOptimisticRead();
+    boolean found = slotsById.get(id) != LongIntHashMap.NOT_FOUND;
+    if (!indexLock.validate(stamp)) {
+      stamp = indexLock.readLock();
+      try {
+        found = slotsById.get(id) != LongIntHashMap.NOT_FOUND;
+      } finally {
+        indexLock.unlockRead(stamp);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Rewrites the timeline without tombstones. Takes O(n), so it should run in the background.
+   * Readers keep using their old snapshots until they take a new one.
+   */
+  public synchronized void compact() {
+    Snapshot current = snapshot;
+    if (current.deadCount == 0) {
+      return;
+    }
+
+    int live = current.size - current.deadCount;
+    int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, live)) * 2);
+    // The text of removed comments is dropped too, so the arena may shrink
+    CommentColumns columns = current.columns.emptyCopy(capacity,
+        Math.max(INITIAL_ARENA_BYTES, current.columns.arenaSize() / 2));
+    LongIntHashMap ids = new LongIntHashMap(live);
+    int size = 0;
+    for (int slot = current.start; slot < current.end(); slot++) {
+      if (!current.dead[slot]) {
+        columns = columns.copy(current.columns, slot, size);
+        ids.put(columns.id(size), size + INITIAL_BIAS);
+        size++;
+      }
+    }
+
+    long stamp = indexLock.writeLock();
+    try {
+      slotsById = ids;
+      snapshot = new Snapshot(columns, new boolean[capacity], 0, size, 0, INITIAL_BIAS);
+    } finally {
+      indexLock.unlockWrite(stamp);
+    }
+  }
+
+  /** Returns the number of comments in the timeline. */
+  public int size() {
+    Snapshot current = snapshot;
+    return current.size - current.deadCount;
+  }
+
+  /** Returns the number of removed comments that have not been compacted away yet. */
+  public int tombstones() {
+    return snapshot.deadCount;
+  }
+
+  /**
+   * Returns an immutable view of the current comments in the given order. Later writes are not
+   * reflected in the returned view.
+   */
+  public List<Comment> asList(SortMethod sort) {
+    return new View(snapshot, sort);
+  }
+
+  /**
+   * Returns the position of the given key in ordered, or the position it would have if it were
+   * inserted. ordered must be sorted by sort, like the views returned by {@link #asList}. The key
+   * itself doesn't need to be in the list. Takes O(log n) for random access lists.
+   */
+  public static int positionOf(List<Comment> ordered, SortMethod sort, long timestamp, long id) {
+    return search(ordered, sort, timestamp, id, false);
+  }
+
+  /**
+   * Returns the position of the first comment in ordered that comes after the given key. ordered
+   * must be sorted by sort. The key itself doesn't need to be in the list.
+   */
+  public static int positionAfter(List<Comment> ordered, SortMethod sort, long timestamp,
+      long id) {
+    return search(ordered, sort, timestamp, id, true);
+  }
+
+  /**
+   * Binary search over a list sorted by sort. Returns the first position whose comment comes at
+   * or after the key, or strictly after it if after is true.
+   */
+  private static int search(List<Comment> ordered, SortMethod sort, long timestamp, long id,
+      boolean after) {
+    // Views can compare keys without building each comment they probe
+    View view = ordered instanceof View ? (View) ordered : null;
+    int low = 0;
+    int high = ordered.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int compare;
+      if (view != null) {
+        int slot = view.slotOf(mid);
+        compare = compareTo(view.snapshot.columns.timestamp(slot), view.snapshot.columns.id(slot),
+            timestamp, id);
+      } else {
+        Comment comment = ordered.get(mid);
+        compare = compareTo(comment.getTimestamp(), comment.getId(), timestamp, id);
+      }
+      if (sort == SortMethod.ASCENDING) {
+        // Newest comments come first
+        compare = -compare;
+      }
+      if (compare < 0 || (after && compare == 0)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** Compares two (timestamp, id) keys, oldest first. */
+  private static int compareTo(long timestamp, long id, long otherTimestamp, long otherId) {
+    int compare = Long.compare(timestamp, otherTimestamp);
+    if (compare == 0) {
+      compare = Long.compare(id, otherId);
+    }
+    return compare;
+  }
+
+  /**
+   * Returns the first slot from from to to whose comment is not older than the given key, or to
+   * if there is none. Tombstones count like any comment. Both halves of the key are needed since
+   * timestamps are not unique.
+   */
+  private static int lowerBound(CommentColumns columns, int from, int to, long timestamp,
+      long id) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compareTo(columns.timestamp(mid), columns.id(mid), timestamp, id) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Read-only list over a single snapshot. {@link SortMethod#ASCENDING} lists the newest comment
+   * first, matching the rest of CommentPersistHelper.
+   */
+  private static class View extends AbstractList<Comment> implements RandomAccess {
+    private final Snapshot snapshot;
+    private final SortMethod sort;
+    /** Slots of the live comments, or null if the snapshot has no tombstones. */
+    private final int[] liveSlots;
+    private final int size;
+
+    private View(Snapshot snapshot, SortMethod sort) {
+      this.snapshot = snapshot;
+      this.sort = sort;
+      liveSlots = snapshot.deadCount == 0 ? null : snapshot.liveSlots();
+      size = liveSlots == null ? snapshot.size : liveSlots.length;
+    }
+
+    @Override
+    public Comment get(int position) {
+      if (position < 0 || position >= size) {
+        throw new IndexOutOfBoundsException(
+            "Position " + position + " is out of bounds for " + size + " comments");
+      }
+      return snapshot.columns.get(slotOf(position));
+    }
+
+    /** Returns the slot of the comment at the given position, which must be in bounds. */
+    private int slotOf(int position) {
+      if (sort == SortMethod.ASCENDING) {
+        position = size - 1 - position;
+      }
+      return liveSlots == null ? snapshot.start + position : liveSlots[position];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
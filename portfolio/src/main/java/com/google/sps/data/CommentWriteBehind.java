@@ -0,0 +1,191 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Stores new comments in Datastore behind the request. A comment is acknowledged once it is in the
+ * local CommentLog, and a background thread later writes the queued comments to Datastore in
+ * batches. Comments still in the log when the process starts are queued again.
+ *
+ * <p>The log is local to the instance, so a comment is only as durable as the instance's disk
+ * until it reaches Datastore.
+ */
+public class CommentWriteBehind {
+  /** Number of comment IDs reserved from Datastore at a time. */
+  private static final int KEY_BLOCK_SIZE = 100;
+  /** Most entities in one batch put, which is Datastore's own limit. */
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final long FLUSH_INTERVAL_MS = 200;
+  /**
+   * Size past which the log is rewritten with only the queued comments. Bounds the time recovery
+   * takes when writes never stop long enough for the queue to empty.
+   */
+  static final long MAX_LOG_BYTES = 1 << 20;
+  /** Writes queued comments to Datastore off the request threads. */
+  private static final ScheduledExecutorService FLUSHER =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("comment-flusher").build());
+
+  private final DatastoreService datastore;
+  private final CommentLog log;
+  /** Comments not in Datastore yet, oldest first, by ID. Guarded by this. */
+  private final Map<Long, Comment> pending;
+  /** Held while a batch is being put, so that deletes can't overtake it. */
+  private final Object flushLock;
+  /** Reserved IDs not handed out yet. Guarded by this. */
+  private Iterator<Key> keys;
+
+  public CommentWriteBehind(DatastoreService datastore, CommentLog log) {
+    this.datastore = datastore;
+    this.log = log;
+    pending = new LinkedHashMap<>();
+    log.recovered().forEach(comment -> pending.put(comment.getId(), comment));
+    flushLock = new Object();
+  }
+
+  /** Starts writing queued comments to Datastore in the background. */
+  public void start() {
+    FLUSHER.scheduleWithFixedDelay(() -> {
+      try {
+        flush();
+      } catch (RuntimeException e) {
+        // Everything unstored stays queued, so the next run retries it
+        System.err.println("Error storing queued comments: " + e.getMessage());
+      }
+    }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns a key for a new comment. IDs are reserved from Datastore in blocks, so this is usually
+   * a local operation.
+   */
+  public synchronized Key newKey() {
+    if (keys == null || !keys.hasNext()) {
+      keys = datastore.allocateIds(Comment.KIND, KEY_BLOCK_SIZE).iterator();
+    }
+    return keys.next();
+  }
+
+  /**
+   * Logs comment and queues it to be stored. If the log can't be written, stores the comment right
+   * away instead. comment must have a key from {@link #newKey}.
+   */
+  public void write(Comment comment) {
+    synchronized (this) {
+      try {
+        log.appendPut(comment);
+        pending.put(comment.getId(), comment);
+        return;
+      } catch (IOException e) {
+        System.err.println("Error logging comment " + comment.getId() + ", storing it directly: "
+            + e.getMessage());
+      }
+    }
+    datastore.put(comment.toEntity());
+  }
+
+  /**
+   * Drops the given comments from the queue, so that a delete from Datastore isn't undone by a
+   * later put. Waits for any put in progress to finish first.
+   */
+  public void discard(Collection<Long> ids) {
+    synchronized (flushLock) {
+      synchronized (this) {
+        for (long id : ids) {
+          pending.remove(id);
+          try {
+            // The log may still hold the comment, even when it was already stored
+            log.appendDelete(id);
+          } catch (IOException e) {
+            System.err.println("Error logging the delete of comment " + id + ": "
+                + e.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns the comments that are not in Datastore yet, oldest first. */
+  public synchronized List<Comment> pending() {
+    return new ArrayList<>(pending.values());
+  }
+
+  /**
+   * Writes every queued comment to Datastore, one batch put at a time. After each batch, drops
+   * the stored comments from the log: it is emptied once nothing is left, or rewritten with just
+   * the queued comments once it passes {@link #MAX_LOG_BYTES}. Throws if Datastore fails; unstored
+   * comments stay queued.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      while (true) {
+        List<Comment> batch;
+        synchronized (this) {
+          batch = pending.values().stream().limit(MAX_BATCH_SIZE).collect(Collectors.toList());
+        }
+        if (batch.isEmpty()) {
+          return;
+        }
+
+        datastore.put(batch.stream().map(Comment::toEntity).collect(Collectors.toList()));
+
+        synchronized (this) {
+          batch.forEach(comment -> pending.remove(comment.getId()));
+          if (pending.isEmpty()) {
+            clearLog();
+          } else {
+            truncateLog();
+          }
+        }
+      }
+    }
+  }
+
+  /** Rewrites the log without the stored comments if it has grown too big. Must hold this. */
+  private void truncateLog() {
+    try {
+      if (log.size() > MAX_LOG_BYTES) {
+        log.rewrite(pending.values());
+      }
+    } catch (IOException e) {
+      // The old log is kept, and replaying stored comments is harmless
+      System.err.println("Error truncating the comment log: " + e.getMessage());
+    }
+  }
+
+  private void clearLog() {
+    try {
+      log.clear();
+    } catch (IOException e) {
+      // Replaying stored comments is harmless, since puts overwrite by key
+      System.err.println("Error clearing the comment log: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.Lists;
+
+/**
+ * Stores each analysis as an entity of its own, whose ID is the ID of its comment, so that reading
+ * one is a single get by key. Nothing is indexed, since analyses are never queried.
+ */
+public class DatastoreAnalysisStore implements AnalysisStore {
+  static final String KIND = "CommentAnalysis";
+  static final String SENTIMENT = "sentimentScore";
+  /** Descriptions of the image labels, in the same order as their scores. */
+  static final String LABEL_DESCRIPTIONS = "labelDescriptions";
+  static final String LABEL_SCORES = "labelScores";
+  /** Most keys Datastore reads in one batch get. */
+  private static final int MAX_KEYS_PER_GET = 1000;
+
+  private final DatastoreService datastore;
+
+  public DatastoreAnalysisStore(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  @Override
+  public Optional<CommentAnalysis> load(long commentId) {
+    Entity entity;
+    try {
+      entity = datastore.get(keyOf(commentId));
+    } catch (EntityNotFoundException e) {
+      return Optional.empty();
+    }
+    return Optional.of(analysisOf(entity));
+  }
+
+  @Override
+  public Map<Long, CommentAnalysis> loadAll(Collection<Long> commentIds) {
+    List<Key> keys = new ArrayList<>(commentIds.size());
+    commentIds.forEach(commentId -> keys.add(keyOf(commentId)));
+    Map<Long, CommentAnalysis> analyses = new HashMap<>();
+    for (List<Key> batch : Lists.partition(keys, MAX_KEYS_PER_GET)) {
+      // Keys that aren't stored are left out of the result
+      for (Entity entity : datastore.get(batch).values()) {
+        analyses.put(entity.getKey().getId(), analysisOf(entity));
+      }
+    }
+    return analyses;
+  }
+
+  @Override
+  public void save(long commentId, CommentAnalysis analysis) {
+    List<String> descriptions = new ArrayList<>();
+    List<Double> scores = new ArrayList<>();
+    for (ImageLabel label : analysis.getImageLabels()) {
+      descriptions.add(label.getDescription());
+      scores.add((double) label.getScore());
+    }
+    Entity entity = new Entity(keyOf(commentId));
+    entity.setUnindexedProperty(SENTIMENT, (double) analysis.getTextSentiment());
+    entity.setUnindexedProperty(LABEL_DESCRIPTIONS, descriptions);
+    entity.setUnindexedProperty(LABEL_SCORES, scores);
+    datastore.put(entity);
+  }
+
+  @Override
+  public void delete(Collection<Long> commentIds) {
+    List<Key> keys = new ArrayList<>(commentIds.size());
+    commentIds.forEach(commentId -> keys.add(keyOf(commentId)));
+    datastore.delete(keys);
+  }
+
+  private static CommentAnalysis analysisOf(Entity entity) {
+    @SuppressWarnings("unchecked")
+    List<String> descriptions = (List<String>) entity.getProperty(LABEL_DESCRIPTIONS);
+    @SuppressWarnings("unchecked")
+    List<Double> scores = (List<Double>) entity.getProperty(LABEL_SCORES);
+    // Datastore stores an empty list as null
+    List<ImageLabel> labels = new ArrayList<>();
+    if (descriptions != null && scores != null) {
+      for (int i = 0; i < descriptions.size(); i++) {
+        labels.add(new ImageLabel(descriptions.get(i), scores.get(i).floatValue()));
+      }
+    }
+    float sentiment = ((Number) entity.getProperty(SENTIMENT)).floatValue();
+    return new CommentAnalysis(labels, sentiment);
+  }
+
+  private static Key keyOf(long commentId) {
+    return KeyFactory.createKey(KIND, commentId);
+  }
+}
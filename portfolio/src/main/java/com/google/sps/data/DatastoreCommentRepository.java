@@ -0,0 +1,166 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/** Stores comments as Datastore entities, optionally writing new ones behind the request. */
+public class DatastoreCommentRepository implements CommentRepository {
+  /** Number of comments fetched per query while loading. */
+  private static final int LOAD_CHUNK_SIZE = 500;
+  /** Times each chunk is tried before loading gives up. */
+  private static final int LOAD_ATTEMPTS = 5;
+  private static final long LOAD_RETRY_DELAY_MS = 1000;
+
+  private final DatastoreService datastore;
+  /** Stores new comments in the background, or null to store them on the request thread. */
+  @Nullable
+  private final CommentWriteBehind writeBehind;
+
+  public DatastoreCommentRepository(DatastoreService datastore,
+      @Nullable CommentWriteBehind writeBehind) {
+    this.datastore = datastore;
+    this.writeBehind = writeBehind;
+  }
+
+  @Override
+  public Comment add(String text, String name, long timestamp, @Nullable String imageUrl,
+      @Nullable BlobKey blobKey) {
+    // In write-behind mode the ID is needed before the entity is stored
+    Entity entity =
+        writeBehind == null ? new Entity(Comment.KIND) : new Entity(writeBehind.newKey());
+    entity.setProperty(Comment.COMMENT_TEXT, text);
+    entity.setProperty(Comment.COMMENT_NAME, name);
+    entity.setProperty(Comment.COMMENT_TIMESTAMP, timestamp);
+    if (imageUrl != null) {
+      entity.setProperty(Comment.COMMENT_PICTURE_URL, imageUrl);
+    }
+    if (blobKey != null) {
+      entity.setProperty(Comment.COMMENT_PICTURE_BLOBKEY, blobKey);
+    }
+
+    if (writeBehind != null) {
+      Comment comment = Comment.fromEntity(entity);
+      writeBehind.write(comment);
+      return comment;
+    }
+    datastore.put(entity);
+    return Comment.fromEntity(entity);
+  }
+
+  /** Deletes the entities of the given comments with a single batch call. */
+  @Override
+  public List<Comment> delete(List<Comment> comments) {
+    if (writeBehind != null) {
+      writeBehind.discard(comments.stream().map(Comment::getId).collect(Collectors.toList()));
+    }
+    List<Key> keys = comments.stream().map(Comment::getKey).collect(Collectors.toList());
+    try {
+      datastore.delete(keys);
+      return Collections.emptyList();
+    } catch (RuntimeException e) {
+      System.err.println("Batch delete of " + keys.size() + " comments failed: " + e.getMessage());
+    }
+
+    // The batch may have partly gone through, so retry one by one to find what's left. Deleting a
+    // missing entity is not an error, so this is safe to repeat.
+    List<Comment> failed = new ArrayList<>();
+    for (Comment comment : comments) {
+      try {
+        datastore.delete(comment.getKey());
+      } catch (RuntimeException e) {
+        System.err.println("Error deleting comment " + comment.getId() + ": " + e.getMessage());
+        failed.add(comment);
+      }
+    }
+    return failed;
+  }
+
+  /** Pages through the comments with query cursors, retrying each chunk on failure. */
+  @Override
+  public void load(long before, Consumer<List<Comment>> consumer) {
+    Query query = new Query(Comment.KIND)
+        .setFilter(
+            new FilterPredicate(Comment.COMMENT_TIMESTAMP, FilterOperator.LESS_THAN, before))
+        .addSort(Comment.COMMENT_TIMESTAMP, SortDirection.DESCENDING);
+    PreparedQuery results = datastore.prepare(query);
+    Cursor cursor = null;
+    while (true) {
+      QueryResultList<Entity> chunk = fetchChunk(results, cursor);
+      consumer.accept(chunk.stream().map(Comment::fromEntity).collect(Collectors.toList()));
+      if (chunk.size() < LOAD_CHUNK_SIZE) {
+        return;
+      }
+      cursor = chunk.getCursor();
+    }
+  }
+
+  /**
+   * Stores the comments left in the write-behind log by the last run, and starts storing new ones
+   * in the background.
+   */
+  @Override
+  public List<Comment> recover() {
+    if (writeBehind == null) {
+      return Collections.emptyList();
+    }
+    try {
+      writeBehind.flush();
+    } catch (RuntimeException e) {
+      System.err.println("Error storing logged comments, will retry: " + e.getMessage());
+    }
+    writeBehind.start();
+    return writeBehind.pending();
+  }
+
+  /** Fetches the chunk of comments that starts at cursor, retrying on failure. */
+  private static QueryResultList<Entity> fetchChunk(PreparedQuery results,
+      @Nullable Cursor cursor) {
+    FetchOptions options = FetchOptions.Builder.withLimit(LOAD_CHUNK_SIZE);
+    if (cursor != null) {
+      options.startCursor(cursor);
+    }
+    for (int attempt = 1;; attempt++) {
+      try {
+        return results.asQueryResultList(options);
+      } catch (RuntimeException e) {
+        if (attempt == LOAD_ATTEMPTS) {
+          throw e;
+        }
+        System.err.println("Error loading comments, retrying: " + e.getMessage());
+        Uninterruptibles.sleepUninterruptibly(LOAD_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+}
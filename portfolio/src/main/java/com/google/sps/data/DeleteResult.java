@@ -0,0 +1,81 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.google.gson.Gson;
+
+/** Outcome of deleting a batch of comments, by comment ID. */
+public class DeleteResult {
+  /** Comments that were deleted. */
+  private final List<Long> deleted;
+  /** IDs that didn't belong to any comment. */
+  private final List<Long> notFound;
+  /** Comments that couldn't be removed from storage, and so are still there. */
+  private final List<Long> failed;
+  /** Deleted comments whose attached image couldn't be removed. */
+  private final List<Long> failedImages;
+
+  public DeleteResult() {
+    deleted = new ArrayList<>();
+    notFound = new ArrayList<>();
+    failed = new ArrayList<>();
+    failedImages = new ArrayList<>();
+  }
+
+  void addDeleted(long id) {
+    deleted.add(id);
+  }
+
+  void addNotFound(long id) {
+    notFound.add(id);
+  }
+
+  void addFailed(long id) {
+    failed.add(id);
+  }
+
+  void addFailedImage(long id) {
+    failedImages.add(id);
+  }
+
+  public List<Long> getDeleted() {
+    return deleted;
+  }
+
+  public List<Long> getNotFound() {
+    return notFound;
+  }
+
+  public List<Long> getFailed() {
+    return failed;
+  }
+
+  public List<Long> getFailedImages() {
+    return failedImages;
+  }
+
+  /** Returns true if every comment that existed was deleted, along with its image. */
+  public boolean isSuccessful() {
+    return failed.isEmpty() && failedImages.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new Gson();
+    return gson.toJson(this);
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Small least-recently-used cache of filter results. Each result is stamped with the write
+ * generation it was computed at, and is only served while that generation is still current.
+ */
+public class FilterResultCache {
+  /** A cached result and the generation it's valid for. */
+  private static class Entry {
+    private final long generation;
+    private final List<Comment> matches;
+
+    private Entry(long generation, List<Comment> matches) {
+      this.generation = generation;
+      this.matches = matches;
+    }
+  }
+
+  private final Map<String, Entry> entries;
+
+  /** Creates a cache holding the results of at most capacity filters. */
+  public FilterResultCache(int capacity) {
+    // Access order makes iteration order least-recently-used first
+    entries = new LinkedHashMap<String, Entry>(capacity, .75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached matches for filter, if they were computed at the given generation. The
+   * returned list must not be modified.
+   */
+  public synchronized Optional<List<Comment>> get(String filter, long generation) {
+    Entry entry = entries.get(filter);
+    if (entry == null || entry.generation != generation) {
+      return Optional.empty();
+    }
+    return Optional.of(entry.matches);
+  }
+
+  /** Caches the matches for filter, computed at the given generation. */
+  public synchronized void put(String filter, long generation, List<Comment> matches) {
+    Entry entry = entries.get(filter);
+    // Never replace a result with one that is older
+    if (entry == null || entry.generation <= generation) {
+      entries.put(filter, new Entry(generation, matches));
+    }
+  }
+}
@@ -0,0 +1,224 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * Stores comments in a local, memory-mapped, append-only file, so that a write is a memory copy
+ * instead of a network round trip. Adds and deletes are appended as checksummed records, and the
+ * index of live comments is rebuilt by scanning the file when it is opened. Meant for running
+ * locally and for load tests, where Datastore is unavailable or would dominate the results.
+ *
+ * <p>The file is a single mapped segment, so it holds at most 2 GiB of records, and the space of
+ * deleted comments is never reclaimed.
+ */
+public class LocalCommentRepository implements CommentRepository, Closeable {
+  /** Size of the mapping for a new file. Doubled whenever it fills up. */
+  private static final int INITIAL_SIZE = 1 << 20;
+  /** Bytes before each record body: its length, then its CRC-32. A zero length ends the log. */
+  private static final int HEADER_BYTES = 8;
+  /** Number of comments passed to the consumer of {@link #load} at a time. */
+  private static final int LOAD_CHUNK_SIZE = 500;
+  private static final Comparator<Comment> NEWEST_FIRST =
+      Comparator.comparingLong(Comment::getTimestamp).thenComparingLong(Comment::getId).reversed();
+
+  private final FileChannel channel;
+  /** Guarded by this, like every field below. */
+  private MappedByteBuffer segment;
+  /** Offset right after the last record. */
+  private int end;
+  /** Offset of the record that added each live comment, by ID. */
+  private final LongIntHashMap offsets;
+  private long nextId;
+
+  /** Opens the file at path, creating it if needed, and indexes the comments already in it. */
+  public LocalCommentRepository(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException(path + " is too large to be a comment file");
+    }
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, size));
+    offsets = new LongIntHashMap();
+    rebuildIndex();
+  }
+
+  @Override
+  public synchronized Comment add(String text, String name, long timestamp,
+      @Nullable String imageUrl, @Nullable BlobKey blobKey) {
+    Comment comment = new Comment(text, name, nextId++, null, timestamp, imageUrl, blobKey);
+    int offset = append(CommentRecord.encodePut(comment));
+    segment.force();
+    offsets.put(comment.getId(), offset);
+    return comment;
+  }
+
+  @Override
+  public synchronized List<Comment> delete(List<Comment> comments) {
+    List<Comment> failed = new ArrayList<>();
+    for (Comment comment : comments) {
+      if (offsets.get(comment.getId()) == LongIntHashMap.NOT_FOUND) {
+        continue;
+      }
+      try {
+        append(CommentRecord.encodeDelete(comment.getId()));
+        offsets.remove(comment.getId());
+      } catch (RuntimeException e) {
+        System.err.println("Error deleting comment " + comment.getId() + ": " + e.getMessage());
+        failed.add(comment);
+      }
+    }
+    segment.force();
+    return failed;
+  }
+
+  @Override
+  public void load(long before, Consumer<List<Comment>> consumer) {
+    List<Comment> live = new ArrayList<>();
+    synchronized (this) {
+      int position = 0;
+      while (position < end) {
+        int length = segment.getInt(position);
+        // Only the record that added a live comment is still indexed
+        CommentRecord record = decodeAt(position, length);
+        if (!record.isDelete() && offsets.get(record.getId()) == position) {
+          CommentRecord.Fields fields = record.getFields();
+          if (fields.timestamp < before) {
+            live.add(new Comment(fields.text, fields.name, record.getId(), null,
+                fields.timestamp, fields.imageUrl, fields.blobKey));
+          }
+        }
+        position += HEADER_BYTES + length;
+      }
+    }
+
+    live.sort(NEWEST_FIRST);
+    for (int from = 0; from < live.size(); from += LOAD_CHUNK_SIZE) {
+      consumer.accept(live.subList(from, Math.min(live.size(), from + LOAD_CHUNK_SIZE)));
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Appends a record at the end of the log, growing the mapping if needed, and returns its offset.
+   * The length is written last, so a record torn by a crash reads as the end of the log.
+   */
+  private int append(byte[] body) {
+    int offset = end;
+    long needed = (long) offset + HEADER_BYTES + body.length;
+    if (needed > segment.capacity()) {
+      grow(needed);
+    }
+    ByteBuffer view = segment.duplicate();
+    view.position(offset + HEADER_BYTES);
+    view.put(body);
+    segment.putInt(offset + Integer.BYTES, CommentRecord.checksum(body));
+    segment.putInt(offset, body.length);
+    end += HEADER_BYTES + body.length;
+    return offset;
+  }
+
+  /** Maps at least needed bytes of the file. */
+  private void grow(long needed) {
+    if (needed > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The comment file is full");
+    }
+    long size = Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * segment.capacity()));
+    try {
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Scans every record to find the live comments and the end of the log. Anything after a torn
+   * or corrupt record is zeroed, so that new records never land in front of stale bytes.
+   */
+  private void rebuildIndex() {
+    int position = 0;
+    long maxId = 0;
+    boolean torn = false;
+    while (position + HEADER_BYTES <= segment.capacity()) {
+      int length = segment.getInt(position);
+      if (length == 0) {
+        break;
+      }
+      if (length < 0 || (long) position + HEADER_BYTES + length > segment.capacity()) {
+        torn = true;
+        break;
+      }
+      CommentRecord record = decodeAt(position, length);
+      if (record == null) {
+        torn = true;
+        break;
+      }
+
+      if (record.isDelete()) {
+        offsets.remove(record.getId());
+      } else {
+        offsets.put(record.getId(), position);
+      }
+      maxId = Math.max(maxId, record.getId());
+      position += HEADER_BYTES + length;
+    }
+
+    end = position;
+    nextId = maxId + 1;
+    if (torn) {
+      System.err.println("Dropping a torn record at offset " + end + " of the comment file");
+      for (int i = end; i < segment.capacity(); i++) {
+        segment.put(i, (byte) 0);
+      }
+      segment.force();
+    }
+  }
+
+  /** Returns the record at offset, or null if its checksum or contents are wrong. */
+  @Nullable
+  private CommentRecord decodeAt(int offset, int length) {
+    byte[] body = new byte[length];
+    ByteBuffer view = segment.duplicate();
+    view.position(offset + HEADER_BYTES);
+    view.get(body);
+    if (CommentRecord.checksum(body) != segment.getInt(offset + Integer.BYTES)) {
+      return null;
+    }
+    try {
+      return CommentRecord.decode(body);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * Open-addressing hash map from long keys to int values, without boxing either. Not thread-safe
+ * for writes. A concurrent {@link #get(long)} never throws or loops forever, but may return a
+ * wrong answer, so callers reading during writes must validate the result themselves.
+ */
+public class LongIntHashMap {
+  /** Returned by {@link #get(long)} when a key is absent. */
+  public static final int NOT_FOUND = -1;
+
+  private static final int MIN_CAPACITY = 16;
+  /** Grow once the table is more than this full. */
+  private static final float MAX_LOAD = .5f;
+
+  /** Keys and values are swapped together on resize, so that readers see a matching pair. */
+  private static final class Table {
+    private final long[] keys;
+    private final int[] values;
+    /** Marks slots in use, since every long is a valid key. */
+    private final boolean[] used;
+
+    private Table(int capacity) {
+      keys = new long[capacity];
+      values = new int[capacity];
+      used = new boolean[capacity];
+    }
+  }
+
+  private volatile Table table;
+  private int size;
+
+  public LongIntHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /** Creates a map that can hold expectedSize keys without resizing. */
+  public LongIntHashMap(int expectedSize) {
+    table = new Table(capacityFor(expectedSize));
+  }
+
+  /** Returns the value for key, or {@link #NOT_FOUND}. */
+  public int get(long key) {
+    Table t = table;
+    int mask = t.keys.length - 1;
+    int slot = hash(key) & mask;
+    // Bounded, so a racing writer can't make this loop forever
+    for (int probes = 0; probes < t.keys.length; probes++) {
+      if (!t.used[slot]) {
+        return NOT_FOUND;
+      }
+      if (t.keys[slot] == key) {
+        return t.values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NOT_FOUND;
+  }
+
+  /** Maps key to value, replacing any previous value. value must not be negative. */
+  public void put(long key, int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Values must not be negative, but got " + value);
+    }
+    if (size + 1 > table.keys.length * MAX_LOAD) {
+      resize(table.keys.length * 2);
+    }
+    Table t = table;
+    int mask = t.keys.length - 1;
+    int slot = hash(key) & mask;
+    while (t.used[slot]) {
+      if (t.keys[slot] == key) {
+        t.values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    t.keys[slot] = key;
+    t.values[slot] = value;
+    t.used[slot] = true;
+    size++;
+  }
+
+  /** Removes key. Returns its value, or {@link #NOT_FOUND} if it was absent. */
+  public int remove(long key) {
+    Table t = table;
+    int mask = t.keys.length - 1;
+    int slot = hash(key) & mask;
+    while (t.used[slot]) {
+      if (t.keys[slot] == key) {
+        int value = t.values[slot];
+        shiftBack(t, slot);
+        size--;
+        return value;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NOT_FOUND;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Empties slot, then moves later entries of the same probe run back so that no lookup is cut
+   * short by the hole. This avoids leaving tombstones in the table.
+   */
+  private static void shiftBack(Table t, int hole) {
+    int mask = t.keys.length - 1;
+    int slot = (hole + 1) & mask;
+    while (t.used[slot]) {
+      int home = hash(t.keys[slot]) & mask;
+      // Move the entry if the hole lies between its home slot and where it is now
+      boolean movable = hole <= slot ? (home <= hole || home > slot) : (home <= hole && home > slot);
+      if (movable) {
+        t.keys[hole] = t.keys[slot];
+        t.values[hole] = t.values[slot];
+        hole = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    t.used[hole] = false;
+  }
+
+  private void resize(int capacity) {
+    Table old = table;
+    Table grown = new Table(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < old.keys.length; i++) {
+      if (old.used[i]) {
+        int slot = hash(old.keys[i]) & mask;
+        while (grown.used[slot]) {
+          slot = (slot + 1) & mask;
+        }
+        grown.keys[slot] = old.keys[i];
+        grown.values[slot] = old.values[i];
+        grown.used[slot] = true;
+      }
+    }
+    table = grown;
+  }
+
+  /** Returns the smallest power of two that holds expectedSize keys under the load factor. */
+  private static int capacityFor(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * MAX_LOAD < expectedSize) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  /** Spreads the bits of key, since Datastore IDs and test IDs are far from random. */
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Position in the comment timeline, handed to clients as an opaque token. Unlike a numeric offset,
+ * a cursor keeps pointing at the same comment when newer comments are added.
+ */
+public class PageCursor {
+  /** Number of bytes in a decoded token: a timestamp and an ID. */
+  private static final int TOKEN_BYTES = 2 * Long.BYTES;
+
+  private final long timestamp;
+  private final long id;
+
+  public PageCursor(long timestamp, long id) {
+    this.timestamp = timestamp;
+    this.id = id;
+  }
+
+  /** Returns a cursor pointing at the given comment. */
+  public static PageCursor of(Comment comment) {
+    return new PageCursor(comment.getTimestamp(), comment.getId());
+  }
+
+  /**
+   * Parses a token created by {@link #encode()}. Throws IllegalArgumentException if the token is
+   * malformed.
+   */
+  public static PageCursor decode(String token) {
+    byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(token);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(token + " is an invalid page cursor.", e);
+    }
+    if (bytes.length != TOKEN_BYTES) {
+      throw new IllegalArgumentException(token + " is an invalid page cursor.");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    return new PageCursor(buffer.getLong(), buffer.getLong());
+  }
+
+  /** Returns a URL-safe token for this cursor. */
+  public String encode() {
+    ByteBuffer buffer = ByteBuffer.allocate(TOKEN_BYTES);
+    buffer.putLong(timestamp).putLong(id);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Long.hashCode(timestamp) + Long.hashCode(id);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof PageCursor)) {
+      return false;
+    }
+    PageCursor c = (PageCursor) other;
+    return timestamp == c.timestamp && id == c.id;
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * Filters numbered candidates while keeping their order. Short lists are scanned on the calling
+ * thread. Past a threshold, the candidates are split into fixed-size chunks that are scanned on a
+ * dedicated ForkJoinPool, whose parallelism is capped so that a big search can't take every core
+ * from the threads serving other requests.
+ */
+public class ParallelFilter {
+  /** System property with the number of threads that scan in parallel. 1 disables the pool. */
+  public static final String PARALLELISM_PROPERTY = "comments.filter.parallelism";
+  /** Candidates below which a search stays on the calling thread. */
+  static final int DEFAULT_THRESHOLD = 100000;
+  /** Candidates scanned by each task. */
+  static final int CHUNK_SIZE = 8192;
+
+  /** Scans the chunks, or null if every scan stays on the calling thread. */
+  @Nullable
+  private final ForkJoinPool pool;
+  private final int threshold;
+
+  /**
+   * Creates a filter that scans at least threshold candidates with the given number of threads.
+   * Throws IllegalArgumentException if either is not positive.
+   */
+  public ParallelFilter(int parallelism, int threshold) {
+    if (parallelism < 1 || threshold < 1) {
+      throw new IllegalArgumentException("Parallelism and threshold must be positive, but got "
+          + parallelism + " and " + threshold);
+    }
+    pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    this.threshold = threshold;
+  }
+
+  /**
+   * Creates a filter with the parallelism set by {@value #PARALLELISM_PROPERTY}, by default half
+   * the available processors.
+   */
+  public static ParallelFilter fromSystemProperties() {
+    int parallelism = Integer.getInteger(PARALLELISM_PROPERTY,
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    return new ParallelFilter(Math.max(1, parallelism), DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Returns, in order, the candidates numbered 0 to count - 1 that pass test. candidate may
+   * return null for a number whose candidate is gone, which is skipped. Both functions must be
+   * safe to call from several threads at once.
+   */
+  public List<Comment> filter(int count, IntFunction<Comment> candidate,
+      Predicate<Comment> test) {
+    if (pool == null || count < threshold) {
+      return scan(0, count, candidate, test);
+    }
+    return pool.invoke(new ScanTask(0, count, candidate, test));
+  }
+
+  /** Scans a range of candidates on the current thread. */
+  private static List<Comment> scan(int from, int to, IntFunction<Comment> candidate,
+      Predicate<Comment> test) {
+    List<Comment> matches = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      Comment comment = candidate.apply(i);
+      if (comment != null && test.test(comment)) {
+        matches.add(comment);
+      }
+    }
+    return matches;
+  }
+
+  /** Splits its range in halves on chunk boundaries until a single chunk is left to scan. */
+  private static class ScanTask extends RecursiveTask<List<Comment>> {
+    private final int from;
+    private final int to;
+    private final IntFunction<Comment> candidate;
+    private final Predicate<Comment> test;
+
+    private ScanTask(int from, int to, IntFunction<Comment> candidate, Predicate<Comment> test) {
+      this.from = from;
+      this.to = to;
+      this.candidate = candidate;
+      this.test = test;
+    }
+
+    @Override
+    protected List<Comment> compute() {
+      int chunks = (to - from + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      if (chunks <= 1) {
+        return scan(from, to, candidate, test);
+      }
+      int middle = from + chunks / 2 * CHUNK_SIZE;
+      ScanTask first = new ScanTask(from, middle, candidate, test);
+      first.fork();
+      List<Comment> second = new ScanTask(middle, to, candidate, test).compute();
+      List<Comment> matches = first.join();
+      matches.addAll(second);
+      return matches;
+    }
+  }
+}
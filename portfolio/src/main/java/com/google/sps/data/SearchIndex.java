@@ -0,0 +1,349 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Ranked full-text index over the text and name of comments. Both are split into words, which
+ * are normalized (compatibility forms unified, accents dropped, case folded), and every word that
+ * isn't a stop word is recorded with its positions. Queries are scored with Okapi BM25, and only
+ * the best matches are kept while scoring, in a heap bounded by the number asked for. A query in
+ * double quotes only matches comments containing the exact phrase.
+ *
+ * <p>Like TrigramIndex, this holds IDs and looks the comments up in a CommentTimeline. Safe to use
+ * from multiple threads; searches run concurrently with each other but not with writes.
+ */
+public class SearchIndex {
+  /** BM25 parameter for how quickly repeating a word stops raising the score. */
+  static final double K1 = 1.2;
+  /** BM25 parameter for how much longer comments are penalized. */
+  static final double B = 0.75;
+  /** Words too common to tell comments apart. Skipped, but still counted for positions. */
+  private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList("a", "an", "and",
+      "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is", "it", "no", "not",
+      "of", "on", "or", "such", "that", "the", "their", "then", "there", "these", "they", "this",
+      "to", "was", "will", "with"));
+  private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+  /**
+   * Position of the first word of the name. Words of the text come before it, since no comment
+   * holds that many, so the two fields never share a position.
+   */
+  private static final int NAME_START = 1 << 30;
+  /**
+   * Best match first; equal scores put the newer comment first, and comments posted at the same
+   * time the one with the higher ID, so that the order is total. IDs alone don't tell which is
+   * newer, since Datastore doesn't hand them out in order.
+   */
+  private static final Comparator<Hit> BEST_FIRST = Comparator.comparingDouble(Hit::getScore)
+      .thenComparingLong(Hit::getTimestamp).thenComparingLong(Hit::getId).reversed();
+
+  /** Maps each word to the comments containing it, and to its positions in each of them. */
+  private final Map<String, Map<Long, int[]>> postings;
+  /** Number of indexed words in each comment, keyed by ID. */
+  private final LongIntHashMap lengths;
+  /** Creation time of each comment, keyed by ID, to break ties between equal scores. */
+  private final Map<Long, Long> timestamps;
+  /** Sum of {@link #lengths}, for the average. */
+  private long totalLength;
+  /** Where matching comments are looked up by ID. */
+  private final CommentTimeline documents;
+  private final ReadWriteLock lock;
+
+  /** A word of a phrase, with its position in the phrase. */
+  private static class PhraseWord {
+    private final String word;
+    private final int offset;
+
+    private PhraseWord(String word, int offset) {
+      this.word = word;
+      this.offset = offset;
+    }
+  }
+
+  /** A comment that matched a query, and how well. */
+  private static class Hit {
+    private final long id;
+    private final long timestamp;
+    private final double score;
+
+    private Hit(long id, long timestamp, double score) {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.score = score;
+    }
+
+    private long getId() {
+      return id;
+    }
+
+    private long getTimestamp() {
+      return timestamp;
+    }
+
+    private double getScore() {
+      return score;
+    }
+  }
+
+  /**
+   * Creates an index over comments kept in documents. Each comment must be added to documents
+   * before it is indexed, and removed from the index after it leaves documents.
+   */
+  public SearchIndex(CommentTimeline documents) {
+    postings = new HashMap<>();
+    lengths = new LongIntHashMap();
+    timestamps = new HashMap<>();
+    this.documents = documents;
+    lock = new ReentrantReadWriteLock();
+  }
+
+  /** Indexes the given comment. Does nothing if it is indexed already. */
+  public void add(Comment comment) {
+    Map<String, int[]> words = wordsOf(comment);
+    int length = words.values().stream().mapToInt(positions -> positions.length).sum();
+    lock.writeLock().lock();
+    try {
+      if (lengths.get(comment.getId()) != LongIntHashMap.NOT_FOUND) {
+        return;
+      }
+      for (Map.Entry<String, int[]> word : words.entrySet()) {
+        postings.computeIfAbsent(word.getKey(), w -> new HashMap<>())
+            .put(comment.getId(), word.getValue());
+      }
+      lengths.put(comment.getId(), length);
+      timestamps.put(comment.getId(), comment.getTimestamp());
+      totalLength += length;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes the given comments from the index. Comments that aren't indexed are skipped. */
+  public void removeAll(Collection<Comment> removed) {
+    lock.writeLock().lock();
+    try {
+      for (Comment comment : removed) {
+        int length = lengths.remove(comment.getId());
+        if (length == LongIntHashMap.NOT_FOUND) {
+          continue;
+        }
+        totalLength -= length;
+        timestamps.remove(comment.getId());
+        for (String word : wordsOf(comment).keySet()) {
+          Map<Long, int[]> comments = postings.get(word);
+          if (comments != null) {
+            comments.remove(comment.getId());
+            if (comments.isEmpty()) {
+              postings.remove(word);
+            }
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Returns the number of indexed comments. */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return lengths.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns up to limit comments matching query, best first, with the total number of matches.
+   * A comment matches if it contains any word of the query, or the whole phrase if the query is
+   * in double quotes. Throws IllegalArgumentException if limit is not positive.
+   */
+  public CommentPage search(String query, int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("Cannot return " + limit + " search results");
+    }
+    query = query.trim();
+    boolean phrase = query.length() >= 2 && query.startsWith("\"") && query.endsWith("\"");
+    List<String> words = tokenize(phrase ? query.substring(1, query.length() - 1) : query);
+    // Every occurrence of each query word with its position in the query, which phrases are
+    // matched against, so that a repeated word is matched at each of its positions
+    List<PhraseWord> phraseWords = new ArrayList<>();
+    Set<String> distinct = new LinkedHashSet<>();
+    for (int position = 0; position < words.size(); position++) {
+      if (!STOP_WORDS.contains(words.get(position))) {
+        phraseWords.add(new PhraseWord(words.get(position), position));
+        distinct.add(words.get(position));
+      }
+    }
+
+    List<Hit> best;
+    int total;
+    lock.readLock().lock();
+    try {
+      Map<Long, Double> scores = score(distinct);
+      if (phrase) {
+        scores.keySet().removeIf(id -> !containsPhrase(id, phraseWords));
+      }
+      total = scores.size();
+      best = top(scores, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    List<Comment> comments = new ArrayList<>(best.size());
+    // A hit may be gone already if it is being removed
+    best.forEach(hit -> documents.get(hit.getId()).ifPresent(comments::add));
+    return new CommentPage(comments, null, null, total);
+  }
+
+  /**
+   * Returns the BM25 score of every comment containing at least one of words. Must hold the read
+   * lock.
+   */
+  private Map<Long, Double> score(Collection<String> words) {
+    Map<Long, Double> scores = new HashMap<>();
+    int count = lengths.size();
+    if (count == 0) {
+      return scores;
+    }
+    double averageLength = Math.max(1, (double) totalLength / count);
+    for (String word : words) {
+      Map<Long, int[]> comments = postings.get(word);
+      if (comments == null) {
+        continue;
+      }
+      // Rarer words count for more
+      double idf = Math.log(1 + (count - comments.size() + .5) / (comments.size() + .5));
+      for (Map.Entry<Long, int[]> comment : comments.entrySet()) {
+        int frequency = comment.getValue().length;
+        double norm = K1 * (1 - B + B * lengths.get(comment.getKey()) / averageLength);
+        scores.merge(comment.getKey(), idf * frequency * (K1 + 1) / (frequency + norm),
+            Double::sum);
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Returns whether the comment with the given ID has every word of the phrase at its offset from
+   * the first word, within a single field. Must hold the read lock.
+   */
+  private boolean containsPhrase(long id, List<PhraseWord> phraseWords) {
+    List<int[]> positions = new ArrayList<>(phraseWords.size());
+    for (PhraseWord phraseWord : phraseWords) {
+      int[] found = postings.getOrDefault(phraseWord.word, Collections.emptyMap()).get(id);
+      if (found == null) {
+        return false;
+      }
+      positions.add(found);
+    }
+    int first = phraseWords.get(0).offset;
+    int span = phraseWords.get(phraseWords.size() - 1).offset - first;
+    for (int start : positions.get(0)) {
+      if ((start < NAME_START) != (start + span < NAME_START)) {
+        // Runs from the end of the text into the name
+        continue;
+      }
+      boolean all = true;
+      for (int i = 1; i < positions.size() && all; i++) {
+        int expected = start + phraseWords.get(i).offset - first;
+        all = Arrays.binarySearch(positions.get(i), expected) >= 0;
+      }
+      if (all) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the limit best scoring IDs, best first, keeping only that many at a time. Must hold
+   * the read lock.
+   */
+  private List<Hit> top(Map<Long, Double> scores, int limit) {
+    // The worst of the best so far is at the head, ready to be replaced
+    PriorityQueue<Hit> heap = new PriorityQueue<>(Math.min(limit, scores.size()) + 1,
+        BEST_FIRST.reversed());
+    for (Map.Entry<Long, Double> score : scores.entrySet()) {
+      Hit hit = new Hit(score.getKey(), timestamps.get(score.getKey()), score.getValue());
+      if (heap.size() < limit) {
+        heap.add(hit);
+      } else if (BEST_FIRST.compare(hit, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(hit);
+      }
+    }
+    List<Hit> best = new ArrayList<>(heap);
+    best.sort(BEST_FIRST);
+    return best;
+  }
+
+  /** Returns the positions of each indexed word of a comment's text, then of its name. */
+  private static Map<String, int[]> wordsOf(Comment comment) {
+    Map<String, List<Integer>> positions = new HashMap<>();
+    addPositions(tokenize(comment.getText()), 0, positions);
+    addPositions(tokenize(comment.getName()), NAME_START, positions);
+
+    Map<String, int[]> words = new HashMap<>();
+    positions.forEach(
+        (word, list) -> words.put(word, list.stream().mapToInt(Integer::intValue).toArray()));
+    return words;
+  }
+
+  private static void addPositions(List<String> words, int start,
+      Map<String, List<Integer>> positions) {
+    for (int i = 0; i < words.size(); i++) {
+      if (!STOP_WORDS.contains(words.get(i))) {
+        positions.computeIfAbsent(words.get(i), w -> new ArrayList<>()).add(start + i);
+      }
+    }
+  }
+
+  /** Splits str into normalized words, stop words included. */
+  static List<String> tokenize(@Nullable String str) {
+    if (str == null) {
+      return Collections.emptyList();
+    }
+    String normalized = Normalizer.normalize(str, Normalizer.Form.NFKD);
+    normalized = COMBINING_MARKS.matcher(normalized).replaceAll("").toLowerCase(Locale.ROOT);
+    List<String> words = new ArrayList<>();
+    for (String word : WORD_SEPARATOR.split(normalized)) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    return words;
+  }
+}
@@ -0,0 +1,226 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Comment IDs ordered by a key other than time, such as the author's name. Comments with equal
+ * keys are ordered newest first. Backed by a treap whose nodes count their subtree, so inserts and
+ * removes take O(log n), and a page of k comments starting anywhere takes O(log n + k). Safe to use
+ * from multiple threads; reads run concurrently with each other but not with writes.
+ *
+ * <p>The index doesn't remember keys by ID, so removing a comment takes the key it was added with.
+ */
+public class SortedIndex<K> {
+  private final Comparator<? super K> keyOrder;
+  private Node<K> root;
+  private final ReadWriteLock lock;
+
+  private static final class Node<K> {
+    private final K key;
+    private final long timestamp;
+    private final long id;
+    /** Random, and never lower than the priority of either child. Keeps the tree balanced. */
+    private final int priority;
+    private Node<K> left;
+    private Node<K> right;
+    /** Number of nodes in this subtree, this one included. */
+    private int size;
+
+    private Node(K key, long timestamp, long id) {
+      this.key = key;
+      this.timestamp = timestamp;
+      this.id = id;
+      priority = ThreadLocalRandom.current().nextInt();
+      size = 1;
+    }
+  }
+
+  public SortedIndex(Comparator<? super K> keyOrder) {
+    this.keyOrder = keyOrder;
+    lock = new ReentrantReadWriteLock();
+  }
+
+  /** Adds the comment with the given ID under key. Does nothing if it is there already. */
+  public void add(K key, long timestamp, long id) {
+    lock.writeLock().lock();
+    try {
+      root = insert(root, new Node<>(key, timestamp, id));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes the comment with the given ID, which was added under key. */
+  public void remove(K key, long timestamp, long id) {
+    lock.writeLock().lock();
+    try {
+      root = delete(root, key, timestamp, id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size(root);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the IDs of up to count comments, starting at position from in key order, or in
+   * reverse key order if reversed is true.
+   */
+  public long[] getPage(int from, int count, boolean reversed) {
+    lock.readLock().lock();
+    try {
+      int size = size(root);
+      from = Math.max(0, Math.min(from, size));
+      count = Math.max(0, Math.min(count, size - from));
+      // Read the same range in key order, then flip it
+      int start = reversed ? size - from - count : from;
+      long[] ids = new long[count];
+      collect(root, start, ids, 0);
+      if (reversed) {
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+          long id = ids[i];
+          ids[i] = ids[j];
+          ids[j] = id;
+        }
+      }
+      return ids;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Fills ids from position filled on with the nodes of the subtree at node, in order, starting at
+   * rank from within the subtree. Returns the new number of filled positions.
+   */
+  private static <K> int collect(Node<K> node, int from, long[] ids, int filled) {
+    if (node == null || filled == ids.length) {
+      return filled;
+    }
+    int leftSize = size(node.left);
+    if (from < leftSize) {
+      filled = collect(node.left, from, ids, filled);
+    }
+    if (filled < ids.length && from <= leftSize) {
+      ids[filled++] = node.id;
+    }
+    return collect(node.right, Math.max(0, from - leftSize - 1), ids, filled);
+  }
+
+  /** Compares the given position to node's: key first, then newest first. */
+  private int compare(K key, long timestamp, long id, Node<K> node) {
+    int compare = keyOrder.compare(key, node.key);
+    if (compare == 0) {
+      compare = Long.compare(node.timestamp, timestamp);
+    }
+    if (compare == 0) {
+      compare = Long.compare(node.id, id);
+    }
+    return compare;
+  }
+
+  private Node<K> insert(Node<K> node, Node<K> added) {
+    if (node == null) {
+      return added;
+    }
+    int compare = compare(added.key, added.timestamp, added.id, node);
+    if (compare < 0) {
+      node.left = insert(node.left, added);
+      if (node.left.priority > node.priority) {
+        node = rotateRight(node);
+      }
+    } else if (compare > 0) {
+      node.right = insert(node.right, added);
+      if (node.right.priority > node.priority) {
+        node = rotateLeft(node);
+      }
+    }
+    update(node);
+    return node;
+  }
+
+  private Node<K> delete(Node<K> node, K key, long timestamp, long id) {
+    if (node == null) {
+      return null;
+    }
+    int compare = compare(key, timestamp, id, node);
+    if (compare == 0) {
+      return merge(node.left, node.right);
+    }
+    if (compare < 0) {
+      node.left = delete(node.left, key, timestamp, id);
+    } else {
+      node.right = delete(node.right, key, timestamp, id);
+    }
+    update(node);
+    return node;
+  }
+
+  /** Joins two treaps, every node of the first coming before every node of the second. */
+  private static <K> Node<K> merge(Node<K> first, Node<K> second) {
+    if (first == null) {
+      return second;
+    }
+    if (second == null) {
+      return first;
+    }
+    if (first.priority > second.priority) {
+      first.right = merge(first.right, second);
+      update(first);
+      return first;
+    }
+    second.left = merge(first, second.left);
+    update(second);
+    return second;
+  }
+
+  private static <K> Node<K> rotateRight(Node<K> node) {
+    Node<K> left = node.left;
+    node.left = left.right;
+    left.right = node;
+    update(node);
+    update(left);
+    return left;
+  }
+
+  private static <K> Node<K> rotateLeft(Node<K> node) {
+    Node<K> right = node.right;
+    node.right = right.left;
+    right.left = node;
+    update(node);
+    update(right);
+    return right;
+  }
+
+  private static <K> void update(Node<K> node) {
+    node.size = 1 + size(node.left) + size(node.right);
+  }
+
+  private static <K> int size(Node<K> node) {
+    return node == null ? 0 : node.size;
+  }
+}
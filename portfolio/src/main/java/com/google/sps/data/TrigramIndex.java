@@ -0,0 +1,216 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.google.sps.data.CommentPersistHelper.SortMethod;
+
+/**
+ * Case-folded trigram index over the text and name of comments. Substring filters are answered by
+ * intersecting the posting lists of the filter's trigrams, then verifying only the candidates with
+ * {@link Comment#contains(String)}. Large candidate sets are verified in parallel by a
+ * ParallelFilter. Safe to use from multiple threads; searches run concurrently with each other but
+ * not with writes.
+ *
+ * <p>The index only holds IDs. The comments themselves are looked up in a CommentTimeline, which
+ * can be shared with the rest of the cache so that each comment is kept only once.
+ */
+public class TrigramIndex {
+  /** Number of characters in a gram. Filters shorter than this can't use the index. */
+  static final int GRAM_LENGTH = 3;
+  /** Order in which search results are returned: newest first, same as the comments list. */
+  static final Comparator<Comment> NEWEST_FIRST =
+      Comparator.comparingLong(Comment::getTimestamp).thenComparingLong(Comment::getId).reversed();
+  /** Verifies candidates, in parallel when there are many. Shared by every index. */
+  private static final ParallelFilter FILTER = ParallelFilter.fromSystemProperties();
+
+  /** Maps each encoded trigram to the IDs of the comments that contain it. */
+  private final Map<Long, Set<Long>> postings;
+  /** Where indexed comments are looked up by ID. */
+  private final CommentTimeline documents;
+  /** True if documents belongs to this index, which then adds and removes comments there. */
+  private final boolean ownsDocuments;
+  private final ReadWriteLock lock;
+
+  /** Creates an index that keeps its own copy of the indexed comments. */
+  public TrigramIndex() {
+    this(new CommentTimeline(), true);
+  }
+
+  /**
+   * Creates an index over comments kept in documents. Each comment must be added to documents
+   * before it is indexed, and removed from the index after it leaves documents.
+   */
+  public TrigramIndex(CommentTimeline documents) {
+    this(documents, false);
+  }
+
+  private TrigramIndex(CommentTimeline documents, boolean ownsDocuments) {
+    postings = new HashMap<>();
+    this.documents = documents;
+    this.ownsDocuments = ownsDocuments;
+    lock = new ReentrantReadWriteLock();
+  }
+
+  /** Indexes the given comment. */
+  public void add(Comment comment) {
+    Set<Long> grams = trigramsOf(comment);
+    lock.writeLock().lock();
+    try {
+      if (ownsDocuments) {
+        documents.add(comment);
+      }
+      for (long gram : grams) {
+        postings.computeIfAbsent(gram, g -> new HashSet<>()).add(comment.getId());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes the given comment from the index. Does nothing if it was never indexed. */
+  public void remove(Comment comment) {
+    removeAll(Collections.singleton(comment));
+  }
+
+  /** Removes the given comments from the index, taking the lock only once. */
+  public void removeAll(Collection<Comment> removed) {
+    lock.writeLock().lock();
+    try {
+      for (Comment comment : removed) {
+        if (ownsDocuments && !documents.remove(comment.getId()).isPresent()) {
+          continue;
+        }
+        for (long gram : trigramsOf(comment)) {
+          Set<Long> ids = postings.get(gram);
+          if (ids != null) {
+            ids.remove(comment.getId());
+            if (ids.isEmpty()) {
+              postings.remove(gram);
+            }
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Returns the number of comments that can be found. */
+  public int size() {
+    return documents.size();
+  }
+
+  /**
+   * Returns the comments whose text or name contains filter (ignoring case), newest first.
+   */
+  public List<Comment> search(String filter) {
+    List<Comment> matches;
+    lock.readLock().lock();
+    try {
+      Set<Long> grams = trigrams(filter, new HashSet<>());
+      if (grams.isEmpty()) {
+        // Filter is too short to index, so every comment is a candidate
+        List<Comment> all = documents.asList(SortMethod.ASCENDING);
+        matches = FILTER.filter(all.size(), all::get, comment -> comment.contains(filter));
+      } else {
+        long[] ids = candidates(grams);
+        // A candidate may be gone already if it is being removed
+        matches = FILTER.filter(ids.length, i -> documents.get(ids[i]).orElse(null),
+            comment -> comment.contains(filter));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    matches.sort(NEWEST_FIRST);
+    return matches;
+  }
+
+  /**
+   * Returns the IDs of the comments that contain every one of the given trigrams. This is a
+   * superset of the actual matches, since the trigrams may be spread across text and name. Must
+   * hold the read lock.
+   */
+  private long[] candidates(Set<Long> grams) {
+    List<Set<Long>> lists = new ArrayList<>(grams.size());
+    for (long gram : grams) {
+      Set<Long> ids = postings.get(gram);
+      if (ids == null) {
+        // No comment contains this trigram, so nothing can match
+        return new long[0];
+      }
+      lists.add(ids);
+    }
+    // Walk the shortest posting list and probe the rest
+    lists.sort(Comparator.comparingInt(Set::size));
+
+    Set<Long> smallest = lists.get(0);
+    long[] result = new long[smallest.size()];
+    int count = 0;
+    for (long id : smallest) {
+      boolean inAll = true;
+      for (int i = 1; i < lists.size() && inAll; i++) {
+        inAll = lists.get(i).contains(id);
+      }
+      if (inAll) {
+        result[count++] = id;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /** Returns the distinct trigrams of a comment's text and name. */
+  private static Set<Long> trigramsOf(Comment comment) {
+    Set<Long> grams = new HashSet<>();
+    trigrams(comment.getText(), grams);
+    trigrams(comment.getName(), grams);
+    return grams;
+  }
+
+  /** Adds the case-folded trigrams of str to grams, and returns grams. */
+  private static Set<Long> trigrams(String str, Set<Long> grams) {
+    if (str == null) {
+      return grams;
+    }
+    for (int i = 0; i + GRAM_LENGTH <= str.length(); i++) {
+      grams.add(encode(str.charAt(i), str.charAt(i + 1), str.charAt(i + 2)));
+    }
+    return grams;
+  }
+
+  /** Packs three case-folded characters into a single key. */
+  private static long encode(char first, char second, char third) {
+    return ((long) fold(first) << 32) | ((long) fold(second) << 16) | fold(third);
+  }
+
+  /**
+   * Folds the case of c so that two characters fold to the same value exactly when
+   * String.regionMatches(true, ...) would consider them equal.
+   */
+  private static char fold(char c) {
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+}
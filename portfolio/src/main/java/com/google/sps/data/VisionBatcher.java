@@ -0,0 +1,225 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.sps.metrics.Metrics;
+
+/**
+ * Combines image annotation requests made around the same time into a single batchAnnotateImages
+ * call. A batch is sent once it is full, or once its first request has waited for the maximum
+ * delay, whichever comes first. It is full when it holds the most requests allowed, or when the
+ * next request would take it past the most bytes Vision accepts in one call; that request then
+ * starts the next batch. Each caller gets a future for its own response.
+ *
+ * <p>One thread collects the batches and a few others send them, so a slow call doesn't hold up
+ * the next batch. Requests whose futures are done by the time their batch is sent, because the
+ * caller gave up on them, are left out.
+ */
+public class VisionBatcher implements AutoCloseable {
+  /** Most images Vision annotates in one synchronous call. */
+  public static final int MAX_BATCH_SIZE = 16;
+  /** Most bytes of requests Vision accepts in one call. */
+  public static final long MAX_BATCH_BYTES = 10 * 1000 * 1000;
+  /** Calls to Vision in progress at once. */
+  private static final int SENDERS = 4;
+  /** How long closing waits for batches being sent. */
+  private static final long CLOSE_TIMEOUT_MS = 5000;
+
+  private final ImageAnnotatorClient client;
+  private final int maxBatchSize;
+  private final long maxBatchBytes;
+  private final long maxDelayNanos;
+  private final BlockingQueue<Pending> queue;
+  private final Thread collector;
+  private final ExecutorService senders;
+  private volatile boolean closed;
+
+  /** A request waiting for its batch to be sent. */
+  private static class Pending {
+    private final AnnotateImageRequest request;
+    private final CompletableFuture<AnnotateImageResponse> response;
+    private final long queuedAt;
+    /** Serialized size of the request, which counts towards the size of its batch. */
+    private final int bytes;
+
+    private Pending(AnnotateImageRequest request) {
+      this.request = request;
+      response = new CompletableFuture<>();
+      queuedAt = System.nanoTime();
+      bytes = request.getSerializedSize();
+    }
+  }
+
+  /**
+   * Creates a batcher sending up to maxBatchSize requests at a time through client, waiting up to
+   * maxDelayMs for a batch to fill. Throws IllegalArgumentException if maxBatchSize is not
+   * between 1 and {@value #MAX_BATCH_SIZE}, or maxDelayMs is negative.
+   */
+  public VisionBatcher(ImageAnnotatorClient client, int maxBatchSize, long maxDelayMs) {
+    this(client, maxBatchSize, MAX_BATCH_BYTES, maxDelayMs);
+  }
+
+  VisionBatcher(ImageAnnotatorClient client, int maxBatchSize, long maxBatchBytes,
+      long maxDelayMs) {
+    if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE || maxDelayMs < 0) {
+      throw new IllegalArgumentException("Batches must hold 1 to " + MAX_BATCH_SIZE
+          + " requests and wait a non-negative time, but got " + maxBatchSize + " and "
+          + maxDelayMs + " ms");
+    }
+    if (maxBatchBytes < 1 || maxBatchBytes > MAX_BATCH_BYTES) {
+      throw new IllegalArgumentException("Batches must hold 1 to " + MAX_BATCH_BYTES
+          + " bytes, but got " + maxBatchBytes);
+    }
+    this.client = client;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchBytes = maxBatchBytes;
+    maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    queue = new LinkedBlockingQueue<>();
+    senders = Executors.newFixedThreadPool(SENDERS,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vision-sender-%d").build());
+    collector = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vision-batcher").build()
+        .newThread(this::collect);
+    collector.start();
+  }
+
+  /**
+   * Queues request for the next batch, and returns its response. The future fails with the
+   * exception of the call, or with IllegalStateException if this is closed.
+   */
+  public CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request) {
+    Pending pending = new Pending(request);
+    queue.add(pending);
+    // close() may have drained the queue before this was added
+    if (closed) {
+      failQueued();
+    }
+    return pending.response;
+  }
+
+  /** Collects batches and hands them to the senders until closed. */
+  private void collect() {
+    // The request that didn't fit in the last batch, which starts the next one
+    Pending carried = null;
+    while (!closed) {
+      List<Pending> batch = new ArrayList<>(maxBatchSize);
+      try {
+        Pending first = carried != null ? carried : queue.take();
+        carried = null;
+        batch.add(first);
+        // A request too large to share a call still gets one of its own
+        long bytes = first.bytes;
+        long deadline = first.queuedAt + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+          Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          if (bytes + next.bytes > maxBatchBytes) {
+            carried = next;
+            break;
+          }
+          batch.add(next);
+          bytes += next.bytes;
+        }
+      } catch (InterruptedException e) {
+        // Only close() interrupts
+        fail(batch);
+        break;
+      }
+      try {
+        senders.execute(() -> send(batch));
+      } catch (RejectedExecutionException e) {
+        fail(batch);
+      }
+    }
+    if (carried != null) {
+      fail(Collections.singletonList(carried));
+    }
+  }
+
+  /** Sends one batch and completes the futures of its requests. */
+  private void send(List<Pending> batch) {
+    List<Pending> wanted =
+        batch.stream().filter(pending -> !pending.response.isDone()).collect(Collectors.toList());
+    if (wanted.isEmpty()) {
+      return;
+    }
+    long now = System.nanoTime();
+    wanted.forEach(pending -> Metrics.QUEUE_WAITS.get("vision").record(now - pending.queuedAt,
+        false));
+    Metrics.BATCH_SIZES.record("vision.annotate", wanted.size());
+
+    List<AnnotateImageRequest> requests =
+        wanted.stream().map(pending -> pending.request).collect(Collectors.toList());
+    try {
+      List<AnnotateImageResponse> responses = Metrics.BACKEND_CALLS.time("vision.annotate",
+          () -> client.batchAnnotateImages(requests)).getResponsesList();
+      if (responses.size() != wanted.size()) {
+        throw new IllegalStateException("Vision answered " + wanted.size() + " requests with "
+            + responses.size() + " responses");
+      }
+      // Responses come in the order of the requests
+      for (int i = 0; i < wanted.size(); i++) {
+        wanted.get(i).response.complete(responses.get(i));
+      }
+    } catch (RuntimeException e) {
+      wanted.forEach(pending -> pending.response.completeExceptionally(e));
+    }
+  }
+
+  private static void fail(List<Pending> batch) {
+    IllegalStateException closed = new IllegalStateException("The Vision batcher is closed");
+    batch.forEach(pending -> pending.response.completeExceptionally(closed));
+  }
+
+  private void failQueued() {
+    List<Pending> left = new ArrayList<>();
+    queue.drainTo(left);
+    fail(left);
+  }
+
+  /**
+   * Stops taking requests, fails those still queued, and waits a few seconds for batches being
+   * sent. Doesn't close the client.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    collector.interrupt();
+    failQueued();
+    senders.shutdown();
+    try {
+      collector.join(CLOSE_TIMEOUT_MS);
+      senders.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
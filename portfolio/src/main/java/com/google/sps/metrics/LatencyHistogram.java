@@ -0,0 +1,128 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds. Every power of two is split into
+ * {@value #SUB_BUCKETS} equal buckets, so a quantile is off by at most 1/16 of its value, and any
+ * latency a long can hold fits in under a thousand buckets. Recording only increments counters,
+ * so it never blocks, and reads run alongside writes; a read racing with a write may or may not
+ * see it.
+ */
+public class LatencyHistogram {
+  /** log2 of the number of buckets each power of two is split into. */
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Enough buckets for Long.MAX_VALUE. */
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+  private final LongAdder errors;
+  private final LongAdder sum;
+  private final AtomicLong max;
+
+  public LatencyHistogram() {
+    counts = new AtomicLongArray(BUCKETS);
+    errors = new LongAdder();
+    sum = new LongAdder();
+    max = new AtomicLong();
+  }
+
+  /** Records a call that took the given time. Negative times count as 0. */
+  public void record(long nanos, boolean failed) {
+    nanos = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(nanos));
+    sum.add(nanos);
+    if (failed) {
+      errors.increment();
+    }
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  /** Returns the number of calls recorded. */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /** Returns the number of recorded calls that failed. */
+  public long getErrorCount() {
+    return errors.sum();
+  }
+
+  /** Returns the total time of every recorded call, in nanoseconds. */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Returns the latency that the given fraction of calls took at most, rounded up to the end of
+   * its bucket, or 0 if nothing is recorded. Throws IllegalArgumentException if quantile is not
+   * between 0 and 1.
+   */
+  public long getQuantile(double quantile) {
+    if (!(quantile >= 0 && quantile <= 1)) {
+      throw new IllegalArgumentException("Quantile must be between 0 and 1, but got " + quantile);
+    }
+    // Copied first, so that the counts add up even while calls are recorded
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Returns the bucket holding the given latency. */
+  static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+    int shift = exponent - SUB_BUCKET_BITS;
+    // The bits right after the leading one pick the bucket within this power of two
+    int subBucket = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the largest latency held by the given bucket. */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowerBound + ((1L << shift) - 1);
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A family of latency histograms, one per value of a label such as the endpoint. Written in the
+ * Prometheus text format as a summary in seconds, with a counter of errors and the share of calls
+ * that failed.
+ */
+public class LatencyMetrics {
+  /** Quantiles written for each histogram. */
+  private static final double[] QUANTILES = {.5, .99, .999};
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final String name;
+  private final String help;
+  private final String label;
+  private final ConcurrentMap<String, LatencyHistogram> histograms;
+
+  /** A timed call that returns a value. */
+  @FunctionalInterface
+  public interface Call<T, E extends Exception> {
+    T call() throws E;
+  }
+
+  /** A timed call that returns nothing. */
+  @FunctionalInterface
+  public interface Action<E extends Exception> {
+    void run() throws E;
+  }
+
+  /**
+   * Creates a family whose metrics are named after name, such as "portfolio_request", and whose
+   * histograms are told apart by label, such as "endpoint".
+   */
+  public LatencyMetrics(String name, String help, String label) {
+    this.name = name;
+    this.help = help;
+    this.label = label;
+    histograms = new ConcurrentHashMap<>();
+  }
+
+  /** Returns the histogram for the given label value, creating it if needed. */
+  public LatencyHistogram get(String value) {
+    return histograms.computeIfAbsent(value, v -> new LatencyHistogram());
+  }
+
+  /** Records a call under the given label value that started at startNanos and ended now. */
+  public void record(String value, long startNanos, boolean failed) {
+    get(value).record(System.nanoTime() - startNanos, failed);
+  }
+
+  /** Runs call, recording how long it took under the given label. Throwing counts as failing. */
+  public <T, E extends Exception> T time(String value, Call<T, E> call) throws E {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      T result = call.call();
+      failed = false;
+      return result;
+    } finally {
+      record(value, start, failed);
+    }
+  }
+
+  /** Same as {@link #time}, for calls that return nothing. */
+  public <E extends Exception> void run(String value, Action<E> action) throws E {
+    time(value, () -> {
+      action.run();
+      return null;
+    });
+  }
+
+  /** Writes every histogram in the Prometheus text format, ordered by label value. */
+  public void writeTo(Writer writer) throws IOException {
+    Map<String, LatencyHistogram> sorted = new TreeMap<>(histograms);
+    writer.write("# HELP " + name + "_seconds " + help + "\n");
+    writer.write("# TYPE " + name + "_seconds summary\n");
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      String labels = label + "=\"" + escape(entry.getKey()) + "\"";
+      LatencyHistogram histogram = entry.getValue();
+      for (double quantile : QUANTILES) {
+        writer.write(name + "_seconds{" + labels + ",quantile=\"" + quantile + "\"} "
+            + seconds(histogram.getQuantile(quantile)) + "\n");
+      }
+      writer.write(name + "_seconds_sum{" + labels + "} " + seconds(histogram.getSum()) + "\n");
+      writer.write(name + "_seconds_count{" + labels + "} " + histogram.getCount() + "\n");
+    }
+
+    writer.write("# HELP " + name + "_errors_total Calls that failed.\n");
+    writer.write("# TYPE " + name + "_errors_total counter\n");
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      writer.write(name + "_errors_total{" + label + "=\"" + escape(entry.getKey()) + "\"} "
+          + entry.getValue().getErrorCount() + "\n");
+    }
+
+    writer.write("# HELP " + name + "_error_ratio Share of calls that failed since startup.\n");
+    writer.write("# TYPE " + name + "_error_ratio gauge\n");
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      long count = entry.getValue().getCount();
+      double ratio = count == 0 ? 0 : (double) entry.getValue().getErrorCount() / count;
+      writer.write(name + "_error_ratio{" + label + "=\"" + escape(entry.getKey()) + "\"} "
+          + ratio + "\n");
+    }
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / NANOS_PER_SECOND;
+  }
+
+  /** Escapes a label value as the text format requires. */
+  static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,47 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** Latency metrics kept by this instance, and served at /metrics. */
+public class Metrics {
+  /** Requests to each endpoint, such as "/data". Errors are 5xx responses and exceptions. */
+  public static final LatencyMetrics REQUESTS = new LatencyMetrics("portfolio_request",
+      "Time taken to serve requests to each endpoint.", "endpoint");
+  /**
+   * Calls to other services, such as "blobstore.delete". Calls to the comment repository, which is
+   * Datastore in production, are named "repository.*".
+   */
+  public static final LatencyMetrics BACKEND_CALLS = new LatencyMetrics("portfolio_backend_call",
+      "Time taken by calls to other services.", "call");
+  /** Time from joining a batch to being sent, for calls that are batched, such as "vision". */
+  public static final LatencyMetrics QUEUE_WAITS = new LatencyMetrics("portfolio_queue_wait",
+      "Time spent waiting for a batch to be sent.", "queue");
+  /** Requests sent in each batched call, such as "vision.annotate". */
+  public static final SizeMetrics BATCH_SIZES = new SizeMetrics("portfolio_batch_size",
+      "Requests sent in each batched call.", "call");
+
+  private Metrics() {}
+
+  /** Writes every metric in the Prometheus text format. */
+  public static void writeTo(Writer writer) throws IOException {
+    REQUESTS.writeTo(writer);
+    BACKEND_CALLS.writeTo(writer);
+    QUEUE_WAITS.writeTo(writer);
+    BATCH_SIZES.writeTo(writer);
+  }
+}
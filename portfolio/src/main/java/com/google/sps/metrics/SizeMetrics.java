@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A family of histograms of sizes, such as the number of requests sent in each batch, one per
+ * value of a label. Written in the Prometheus text format as a summary. Sizes below 16 are exact.
+ */
+public class SizeMetrics {
+  /** Quantiles written for each histogram. */
+  private static final double[] QUANTILES = {.5, .99, .999};
+
+  private final String name;
+  private final String help;
+  private final String label;
+  /** Histograms reused for their buckets, holding sizes rather than nanoseconds. */
+  private final ConcurrentMap<String, LatencyHistogram> histograms;
+
+  public SizeMetrics(String name, String help, String label) {
+    this.name = name;
+    this.help = help;
+    this.label = label;
+    histograms = new ConcurrentHashMap<>();
+  }
+
+  /** Records a size under the given label value. */
+  public void record(String value, long size) {
+    histograms.computeIfAbsent(value, v -> new LatencyHistogram()).record(size, false);
+  }
+
+  /** Returns the number of sizes recorded under the given label value. */
+  public long getCount(String value) {
+    LatencyHistogram histogram = histograms.get(value);
+    return histogram == null ? 0 : histogram.getCount();
+  }
+
+  /** Writes every histogram in the Prometheus text format, ordered by label value. */
+  public void writeTo(Writer writer) throws IOException {
+    writer.write("# HELP " + name + " " + help + "\n");
+    writer.write("# TYPE " + name + " summary\n");
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+      String labels = label + "=\"" + LatencyMetrics.escape(entry.getKey()) + "\"";
+      LatencyHistogram histogram = entry.getValue();
+      for (double quantile : QUANTILES) {
+        writer.write(name + "{" + labels + ",quantile=\"" + quantile + "\"} "
+            + histogram.getQuantile(quantile) + "\n");
+      }
+      writer.write(name + "_sum{" + labels + "} " + histogram.getSum() + "\n");
+      writer.write(name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+    }
+  }
+}
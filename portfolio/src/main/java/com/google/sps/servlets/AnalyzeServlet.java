@@ -15,37 +15,97 @@
 package com.google.sps.servlets;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import com.google.sps.config.Flags;
+import com.google.sps.data.AnalysisCache;
+import com.google.sps.data.AnalysisClients;
+import com.google.sps.data.AnalysisQueue;
 import com.google.sps.data.Comment;
 import com.google.sps.data.CommentAnalysis;
+import com.google.sps.data.CommentAnalyzer;
 import com.google.sps.data.CommentPersistHelper;
 
 /**
- * Analyzes the posted image with GCloud vision. Will eventually also analyze the comment sentiment.
+ * Analyzes the posted image with GCloud vision, and the comment sentiment with GCloud natural
+ * language. The two calls are independent, so they run at the same time, each with a deadline; if
+ * one misses it, the other's result is sent alone. Comments never change, so each is analyzed
+ * once; later requests are served from an AnalysisCache. The GCloud clients are created when the
+ * servlet starts and shut down when it stops.
+ *
+ * <p>Outside test mode, the servlet also starts an AnalysisQueue, which analyzes new comments as
+ * they are posted and existing ones in the background, so that most requests find their analysis
+ * stored already. It is loaded on startup for the sake of that queue.
  */
-@WebServlet("/analyze")
+@WebServlet(urlPatterns = "/analyze", loadOnStartup = 1)
 public class AnalyzeServlet extends HttpServlet {
 
   /** Query string for the comment to be analyzed. */
   private static final String COMMENT_ID = "id";
+  /** Number of analyses kept in memory. */
+  private static final int ANALYSIS_CACHE_SIZE = 1000;
 
   private static CommentPersistHelper commentStore;
+  /** Shared by every analysis, or null in test mode. */
+  @Nullable
+  private AnalysisClients clients;
+  private AnalysisCache analyses;
+  private CommentAnalyzer analyzer;
+  /** Analyzes comments before they are asked for, or null in test mode. */
+  @Nullable
+  private AnalysisQueue queue;
 
-  public AnalyzeServlet() {
+  public AnalyzeServlet() {}
 
+  AnalyzeServlet(CommentPersistHelper commentStore) {
+    this(commentStore, null, new AnalysisCache(ANALYSIS_CACHE_SIZE, null),
+        new CommentAnalyzer(null));
   }
 
-  AnalyzeServlet(CommentPersistHelper commentStore) {
+  AnalyzeServlet(CommentPersistHelper commentStore, @Nullable AnalysisClients clients,
+      AnalysisCache analyses, ExecutorService executor, long deadlineMs) {
+    this(commentStore, clients, analyses, new CommentAnalyzer(clients, executor, deadlineMs));
+  }
+
+  private AnalyzeServlet(CommentPersistHelper commentStore, @Nullable AnalysisClients clients,
+      AnalysisCache analyses, CommentAnalyzer analyzer) {
     this.commentStore = commentStore;
+    this.clients = clients;
+    this.analyses = analyses;
+    this.analyzer = analyzer;
   }
 
   @Override
   public void init() {
     commentStore = CommentPersistHelper.getInstance();
+    if (clients == null && !Flags.IS_TEST) {
+      try {
+        clients = AnalysisClients.fromSystemProperties();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error creating the GCloud clients", e);
+      }
+    }
+    if (analyses == null) {
+      // The same store the comments' deletes clear
+      analyses = new AnalysisCache(ANALYSIS_CACHE_SIZE, commentStore.getAnalysisStore());
+    }
+    if (analyzer == null) {
+      analyzer = new CommentAnalyzer(clients);
+    }
+    if (!Flags.IS_TEST) {
+      queue = new AnalysisQueue(analyses, analyzer::analyze,
+          (id, analysis) -> commentStore.recordSentiment(id, analysis.getTextSentiment()));
+      commentStore.setAnalysisQueue(queue);
+      // Comments posted before eager analysis, or while the queue was full or down
+      queue.startBackfill(commentStore::getAllComments);
+    }
   }
 
   void doPost(HttpServletRequest request, HttpServletResponse response, CommentAnalysis analysis)
@@ -55,9 +115,17 @@ public class AnalyzeServlet extends HttpServlet {
       Optional<Comment> comment = commentStore.getCommentById(commentId);
       // Avoid using ifPresent since lambdas don't play nice with exceptions
       if (comment.isPresent()) {
-        analysis.analyzeImage(comment.get());
-        analysis.analyzeText(comment.get());
-        response.getWriter().println(analysis.toString());
+        AtomicBoolean analyzed = new AtomicBoolean();
+        CommentAnalysis result = analyses.get(commentId, () -> {
+          analyzed.set(true);
+          return analyzer.analyze(comment.get(), analysis);
+        });
+        // A cached analysis was recorded when it was computed, or restored by the backfill
+        if (analyzed.get() && result.hasTextSentiment()) {
+          // Lets the comments be sorted by sentiment
+          commentStore.recordSentiment(commentId, result.getTextSentiment());
+        }
+        response.getWriter().println(result.toString());
       }
     } catch (NumberFormatException e) {
       throw new IllegalArgumentException(
@@ -65,9 +133,22 @@ public class AnalyzeServlet extends HttpServlet {
     }
   }
 
-
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    doPost(request, response, new CommentAnalysis());
+    doPost(request, response, new CommentAnalysis(clients));
+  }
+
+  @Override
+  public void destroy() {
+    if (queue != null) {
+      commentStore.setAnalysisQueue(null);
+      queue.close();
+      queue = null;
+    }
+    // After the queue, which may still be using them
+    if (clients != null) {
+      clients.close();
+      clients = null;
+    }
   }
 }
@@ -15,14 +15,23 @@
 package com.google.sps.servlets;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import javax.annotation.Nullable;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import com.google.common.hash.Hashing;
+import com.google.sps.data.CommentJsonCache;
+import com.google.sps.data.CommentPage;
 import com.google.sps.data.CommentPersistHelper;
+import com.google.sps.data.DeleteResult;
+import com.google.sps.data.PageCursor;
 
 /**
  * Servlet that returns some example content.
@@ -37,16 +46,33 @@ public class DataServlet extends HttpServlet {
   private static final String TOTAL_NUMBER_HEADER = "num-comments";
   /** Query string that indicates whether to sort ascending or descending. */
   private static final String SORT_ASCENDING_QUERY = "sort-ascending";
+  /** Query string naming what to sort by: time, name, length or sentiment. */
+  private static final String SORT_BY_QUERY = "sort-by";
   /** Parameter which contains the ID's of the comments to delete. */
   private static final String DELETE_PARAMETER = "delete";
   /** Query string that tells which comment to start at. */
   private static final String PAGINATION_START = "pagination";
   /** Query string that holds a filter. */
   private static final String FILTER_QUERY = "filter";
+  /** Query string holding a cursor; the page starts right after the comment it points at. */
+  private static final String CURSOR_AFTER_QUERY = "after";
+  /** Query string holding a cursor; the page ends right before the comment it points at. */
+  private static final String CURSOR_BEFORE_QUERY = "before";
+  /** Header containing the cursor for the next page, if there is one. */
+  private static final String NEXT_CURSOR_HEADER = "next-cursor";
+  /** Header containing the cursor for the previous page, if there is one. */
+  private static final String PREVIOUS_CURSOR_HEADER = "previous-cursor";
+  /** Header holding the version of a response, for conditional requests. */
+  private static final String ETAG_HEADER = "ETag";
+  /** Header holding the versions of a response that the client already has. */
+  private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
   /** Default sorting method for retrieving comments. */
   private static final CommentPersistHelper.SortMethod DEFAULT_SORT =
       CommentPersistHelper.SortMethod.ASCENDING;
 
+  /** Encoded comments, so that popular pages are sent without encoding them again. */
+  private static final CommentJsonCache COMMENT_JSON = new CommentJsonCache();
+
   private static CommentPersistHelper commentStore;
 
   @Override
@@ -56,10 +82,22 @@ public class DataServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // Taken before reading any comments, so a write racing with this request can only make the
+    // tag older than the page, which costs a full response next time rather than a stale page
+    String etag = etagOf(request);
+    response.setHeader(ETAG_HEADER, etag);
+    // Let clients keep the page, but check back every time
+    response.setHeader("Cache-Control", "no-cache");
+    if (matches(request.getHeader(IF_NONE_MATCH_HEADER), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
     int paginationFrom;
     // The number of comments to send
     int commentsToSend;
     CommentPersistHelper.SortMethod sort;
+    CommentPersistHelper.SortKey sortKey;
     String filter;
 
     try {
@@ -95,8 +133,26 @@ public class DataServlet extends HttpServlet {
       sort = DEFAULT_SORT;
     }
 
+    String sortBy = request.getParameter(SORT_BY_QUERY);
+    if (sortBy == null) {
+      sortKey = CommentPersistHelper.SortKey.TIME;
+    } else {
+      try {
+        sortKey = CommentPersistHelper.SortKey.valueOf(sortBy.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(sortBy + " is not something comments can be sorted by."
+            + " Aborting GET...");
+      }
+    }
+
     try {
-      paginationFrom = Integer.parseInt(request.getParameter(PAGINATION_START));
+      String paginationQuery = request.getParameter(PAGINATION_START);
+      // Integer.parseInt() throws a NumberFormatException for null too, so separate that case
+      if (paginationQuery == null) {
+        throw new NullPointerException();
+      }
+
+      paginationFrom = Integer.parseInt(paginationQuery);
       if (paginationFrom < 0) {
         paginationFrom = 0;
       }
@@ -116,11 +172,59 @@ public class DataServlet extends HttpServlet {
       filter = null;
     }
 
-    response.setContentType("application/json;");
-    response.getWriter()
-        .println(commentStore.stringifyComments(commentsToSend, sort, paginationFrom, filter));
-    // Send the total number of comments
-    response.addIntHeader(TOTAL_NUMBER_HEADER, commentStore.getNumberComments(filter));
+    String after = request.getParameter(CURSOR_AFTER_QUERY);
+    String before = request.getParameter(CURSOR_BEFORE_QUERY);
+    CommentPage page;
+    if (sortKey != CommentPersistHelper.SortKey.TIME) {
+      if (after != null || before != null) {
+        throw new IllegalArgumentException(
+            "Only comments sorted by time can be paginated with cursors. Aborting GET...");
+      }
+      page = commentStore.getPage(commentsToSend, sort, sortKey, paginationFrom, filter);
+    } else if (after != null || before != null) {
+      // Cursors take priority over a numeric pagination start
+      boolean backwards = after == null;
+      PageCursor cursor = PageCursor.decode(backwards ? before : after);
+      page = commentStore.getPage(commentsToSend, sort, cursor, backwards, filter);
+    } else {
+      page = commentStore.getPage(commentsToSend, sort, paginationFrom, filter);
+    }
+
+    response.setContentType("application/json; charset=UTF-8");
+    // Send the total number of comments, and where to go from here
+    response.addIntHeader(TOTAL_NUMBER_HEADER, page.getTotalCount());
+    page.getNext().ifPresent(next -> response.setHeader(NEXT_CURSOR_HEADER, next.encode()));
+    page.getPrevious().ifPresent(
+        previous -> response.setHeader(PREVIOUS_CURSOR_HEADER, previous.encode()));
+    COMMENT_JSON.writeList(page.getComments(), response.getOutputStream());
+  }
+
+  /**
+   * Returns a strong ETag for the response to request, given the comments as they are now. The
+   * query is digested rather than hashed, so that two queries never share a tag in practice.
+   */
+  private static String etagOf(HttpServletRequest request) {
+    String query = Objects.toString(request.getQueryString(), "");
+    return "\"" + commentStore.getVersion() + "."
+        + Hashing.sha256().hashString(query, StandardCharsets.UTF_8) + "\"";
+  }
+
+  /** Returns true if the If-None-Match header value ifNoneMatch lists etag. */
+  private static boolean matches(@Nullable String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      // If-None-Match uses weak comparison, so a weakened copy of our tag still counts
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override
@@ -145,6 +249,11 @@ public class DataServlet extends HttpServlet {
       }
     });
 
-    deleteIds.stream().forEach(id -> commentStore.deleteComment(id));
+    DeleteResult result = commentStore.deleteComments(deleteIds);
+    if (!result.isSuccessful()) {
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    response.setContentType("application/json; charset=UTF-8");
+    response.getWriter().println(result);
   }
 }
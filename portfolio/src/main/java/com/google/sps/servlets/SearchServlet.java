@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.CommentJsonAdapter;
+import com.google.sps.data.CommentPage;
+import com.google.sps.data.CommentPersistHelper;
+
+/**
+ * Searches the comments, and returns the best matches as JSON, most relevant first. The total
+ * number of matches is sent in a header.
+ */
+@WebServlet("/search")
+public class SearchServlet extends HttpServlet {
+  /** Query string holding what to search for. */
+  private static final String QUERY = "q";
+  /** Query string which contains the number of results to send. */
+  private static final String NUMBER_RESULTS_QUERY = "num-comments";
+  /** Header containing the total number of matching comments. */
+  private static final String TOTAL_NUMBER_HEADER = "num-comments";
+  /** Default number of results to send. */
+  private static final int DEFAULT_RESULT_COUNT = 10;
+  /** Most results sent for a single search, however many are asked for. */
+  private static final int MAX_RESULT_COUNT = 100;
+
+  private static final CommentJsonAdapter COMMENT_JSON = new CommentJsonAdapter();
+
+  private CommentPersistHelper commentStore;
+
+  public SearchServlet() {}
+
+  SearchServlet(CommentPersistHelper commentStore) {
+    this.commentStore = commentStore;
+  }
+
+  @Override
+  public void init() {
+    if (commentStore == null) {
+      commentStore = CommentPersistHelper.getInstance();
+    }
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String query = request.getParameter(QUERY);
+    if (query == null || query.trim().isEmpty()) {
+      throw new IllegalArgumentException("A search needs a query. Aborting GET...");
+    }
+
+    int resultsToSend = DEFAULT_RESULT_COUNT;
+    String number = request.getParameter(NUMBER_RESULTS_QUERY);
+    if (number != null) {
+      try {
+        resultsToSend = Integer.parseInt(number);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+            number + " is an invalid number of results. Aborting GET...", e);
+      }
+      if (resultsToSend <= 0) {
+        resultsToSend = DEFAULT_RESULT_COUNT;
+      }
+    }
+
+    CommentPage results =
+        commentStore.search(query, Math.min(resultsToSend, MAX_RESULT_COUNT));
+    response.setContentType("application/json; charset=UTF-8");
+    response.addIntHeader(TOTAL_NUMBER_HEADER, results.getTotalCount());
+    COMMENT_JSON.writeList(results.getComments(), response.getWriter());
+  }
+}
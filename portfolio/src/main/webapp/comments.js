@@ -229,11 +229,16 @@ function expand(comment, expandId, containerId) {
         // Delete the placeholder and add in analysis
         deleteChildren(analysisId);
 
-        appendElement(analysisId, 'p', `Sentiment score: ${response.sentimentScore}`);
+        // Either analysis is left out if it took too long
+        if (response.sentimentScore !== undefined) {
+          appendElement(analysisId, 'p', `Sentiment score: ${response.sentimentScore}`);
+        } else {
+          appendElement(analysisId, 'p', 'Sentiment score unavailable');
+        }
 
         // Only add image labels if they are retrieved
         let imageAnalysis = response.imageLabels;
-        if (imageAnalysis.length > 0) {
+        if (imageAnalysis && imageAnalysis.length > 0) {
           appendElement(analysisId, 'h2', 'Image Analysis');
           imageAnalysis.forEach(label => {
             appendElement(analysisId, 'p', `${label.description}: ${label.score}`);
@@ -0,0 +1,202 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the AnalysisCache class */
+@RunWith(JUnit4.class)
+public class AnalysisCacheTest {
+  /** Stores analyses in a map. */
+  private static class MapStore implements AnalysisStore {
+    private final Map<Long, CommentAnalysis> analyses = new HashMap<>();
+
+    @Override
+    public synchronized Optional<CommentAnalysis> load(long commentId) {
+      return Optional.ofNullable(analyses.get(commentId));
+    }
+
+    @Override
+    public synchronized Map<Long, CommentAnalysis> loadAll(Collection<Long> commentIds) {
+      Map<Long, CommentAnalysis> found = new HashMap<>();
+      for (long commentId : commentIds) {
+        if (analyses.containsKey(commentId)) {
+          found.put(commentId, analyses.get(commentId));
+        }
+      }
+      return found;
+    }
+
+    @Override
+    public synchronized void save(long commentId, CommentAnalysis analysis) {
+      analyses.put(commentId, analysis);
+    }
+
+    @Override
+    public synchronized void delete(Collection<Long> commentIds) {
+      analyses.keySet().removeAll(commentIds);
+    }
+  }
+
+  private static CommentAnalysis complete(float sentiment) {
+    return new CommentAnalysis(Arrays.asList(new ImageLabel("Chicken", .9f)), sentiment);
+  }
+
+  /** Test that an analysis is computed once, then served from memory */
+  @Test
+  public void testComputedOnce() throws IOException {
+    MapStore store = new MapStore();
+    AnalysisCache cache = new AnalysisCache(10, store);
+    AtomicInteger runs = new AtomicInteger();
+
+    CommentAnalysis first = cache.get(1, () -> {
+      runs.incrementAndGet();
+      return complete(.5f);
+    });
+    CommentAnalysis second = cache.get(1, () -> {
+      runs.incrementAndGet();
+      return complete(-.5f);
+    });
+
+    Assert.assertSame(first, second);
+    Assert.assertEquals(1, runs.get());
+    Assert.assertSame(first, store.load(1).get());
+  }
+
+  /** Test that analyses stored before a restart are served without computing them */
+  @Test
+  public void testLoadedFromStore() throws IOException {
+    MapStore store = new MapStore();
+    CommentAnalysis stored = complete(.5f);
+    store.save(1, stored);
+
+    AnalysisCache cache = new AnalysisCache(10, store);
+    Assert.assertSame(stored, cache.get(1, () -> {
+      throw new AssertionError("Stored analysis computed again");
+    }));
+  }
+
+  /** Test that an analysis missing a result is computed again next time */
+  @Test
+  public void testPartialNotKept() throws IOException {
+    MapStore store = new MapStore();
+    AnalysisCache cache = new AnalysisCache(10, store);
+    cache.get(1, CommentAnalysis::new);
+
+    Assert.assertFalse(store.load(1).isPresent());
+    Assert.assertEquals(.5f, cache.get(1, () -> complete(.5f)).getTextSentiment(), .001);
+  }
+
+  /** Test that the least recently used analysis is dropped from memory first */
+  @Test
+  public void testEviction() throws IOException {
+    AnalysisCache cache = new AnalysisCache(2, null);
+    CommentAnalysis first = cache.get(1, () -> complete(1));
+    cache.get(2, () -> complete(2));
+    cache.get(1, () -> complete(-1));
+    cache.get(3, () -> complete(3));
+
+    Assert.assertSame(first, cache.get(1, () -> complete(-1)));
+    Assert.assertEquals(-2, cache.get(2, () -> complete(-2)).getTextSentiment(), .001);
+  }
+
+  /** Test that concurrent first requests share one computation */
+  @Test
+  public void testSingleFlight() throws InterruptedException {
+    AnalysisCache cache = new AnalysisCache(10, null);
+    AtomicInteger runs = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<CommentAnalysis> results = new ArrayList<>();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          CommentAnalysis result = cache.get(1, () -> {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return complete(.5f);
+          });
+          synchronized (results) {
+            results.add(result);
+          }
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    started.await();
+    // Give the others time to reach the cache while the first is still computing
+    Thread.sleep(100);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(1, runs.get());
+    Assert.assertEquals(4, results.size());
+    results.forEach(result -> Assert.assertSame(results.get(0), result));
+  }
+
+  /** Test that a failed computation is rethrown, and tried again next time */
+  @Test
+  public void testFailure() throws IOException {
+    AnalysisCache cache = new AnalysisCache(10, null);
+    try {
+      cache.get(1, () -> {
+        throw new IOException("Vision is down");
+      });
+      Assert.fail("Expected the failure to be rethrown");
+    } catch (IOException e) {
+      Assert.assertEquals("Vision is down", e.getMessage());
+    }
+    Assert.assertTrue(cache.get(1, () -> complete(.5f)).isComplete());
+  }
+
+  /** Test that available analyses are read from memory and the store without computing any */
+  @Test
+  public void testGetAvailable() throws IOException {
+    MapStore store = new MapStore();
+    store.save(2, complete(.5f));
+    AnalysisCache cache = new AnalysisCache(10, store);
+    cache.get(1, () -> complete(.25f));
+
+    Map<Long, CommentAnalysis> available = cache.getAvailable(Arrays.asList(1L, 2L, 3L));
+
+    Assert.assertEquals(2, available.size());
+    Assert.assertEquals(.25f, available.get(1L).getTextSentiment(), 0);
+    Assert.assertEquals(.5f, available.get(2L).getTextSentiment(), 0);
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.TimeUnit;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+
+/** Tests the AnalysisClients class */
+@RunWith(JUnit4.class)
+public class AnalysisClientsTest {
+  /** Test that closing lets calls in progress finish before cutting off both clients */
+  @Test
+  public void testClose() throws InterruptedException {
+    ImageAnnotatorClient vision = mock(ImageAnnotatorClient.class);
+    LanguageServiceClient language = mock(LanguageServiceClient.class);
+
+    new AnalysisClients(vision, language).close();
+
+    InOrder order = inOrder(vision, language);
+    order.verify(vision).shutdown();
+    order.verify(language).shutdown();
+    order.verify(vision).awaitTermination(anyLong(), any(TimeUnit.class));
+    order.verify(language).awaitTermination(anyLong(), any(TimeUnit.class));
+    order.verify(vision).shutdownNow();
+    order.verify(language).shutdownNow();
+  }
+}
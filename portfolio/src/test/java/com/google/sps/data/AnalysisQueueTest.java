@@ -0,0 +1,228 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the AnalysisQueue class */
+@RunWith(JUnit4.class)
+public class AnalysisQueueTest {
+  /** Stores analyses in a map. */
+  private static class MapStore implements AnalysisStore {
+    private final Map<Long, CommentAnalysis> analyses = new HashMap<>();
+
+    @Override
+    public synchronized Optional<CommentAnalysis> load(long commentId) {
+      return Optional.ofNullable(analyses.get(commentId));
+    }
+
+    @Override
+    public synchronized Map<Long, CommentAnalysis> loadAll(Collection<Long> commentIds) {
+      Map<Long, CommentAnalysis> found = new HashMap<>();
+      for (long commentId : commentIds) {
+        if (analyses.containsKey(commentId)) {
+          found.put(commentId, analyses.get(commentId));
+        }
+      }
+      return found;
+    }
+
+    @Override
+    public synchronized void save(long commentId, CommentAnalysis analysis) {
+      analyses.put(commentId, analysis);
+    }
+
+    @Override
+    public synchronized void delete(Collection<Long> commentIds) {
+      analyses.keySet().removeAll(commentIds);
+    }
+  }
+
+  private static Comment comment(long id) {
+    return new Comment("Text", "Name", id, null, id * 1000, null, null);
+  }
+
+  private static CommentAnalysis complete(float sentiment) {
+    return new CommentAnalysis(Arrays.asList(new ImageLabel("Chicken", .9f)), sentiment);
+  }
+
+  /** Creates a queue with two workers, short retry delays and no backfill interval. */
+  private static AnalysisQueue queue(AnalysisCache cache, AnalysisQueue.Analyzer analyzer,
+      Map<Long, Float> sentiments) {
+    return new AnalysisQueue(cache, analyzer,
+        (id, analysis) -> sentiments.put(id, analysis.getTextSentiment()), 2, 8, 1, 0);
+  }
+
+  /** Test that a submitted comment is analyzed, stored and reported */
+  @Test
+  public void testSubmit() throws Exception {
+    MapStore store = new MapStore();
+    Map<Long, Float> sentiments = new ConcurrentHashMap<>();
+    AnalysisQueue queue = queue(new AnalysisCache(10, store), comment -> complete(.5f), sentiments);
+
+    Assert.assertTrue(queue.submit(comment(1)));
+    queue.close();
+
+    Assert.assertEquals(.5f, store.load(1).get().getTextSentiment(), 0);
+    Assert.assertEquals(.5f, sentiments.get(1L), 0);
+  }
+
+  /** Test that failed and incomplete analyses are retried until one is complete */
+  @Test
+  public void testRetry() throws Exception {
+    MapStore store = new MapStore();
+    Map<Long, Float> sentiments = new ConcurrentHashMap<>();
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(1);
+    AnalysisQueue queue = queue(new AnalysisCache(10, store), comment -> {
+      switch (attempts.incrementAndGet()) {
+        case 1:
+          throw new IOException("Unavailable");
+        case 2:
+          return new CommentAnalysis();
+        default:
+          done.countDown();
+          return complete(-.25f);
+      }
+    }, sentiments);
+
+    queue.submit(comment(1));
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    queue.close();
+
+    Assert.assertEquals(3, attempts.get());
+    Assert.assertEquals(-.25f, sentiments.get(1L), 0);
+    Assert.assertTrue(store.load(1).isPresent());
+  }
+
+  /** Test that a comment which keeps failing is given up on */
+  @Test
+  public void testGiveUp() throws Exception {
+    MapStore store = new MapStore();
+    Map<Long, Float> sentiments = new ConcurrentHashMap<>();
+    CountDownLatch attempts = new CountDownLatch(AnalysisQueue.MAX_ATTEMPTS);
+    AnalysisQueue queue = queue(new AnalysisCache(10, store), comment -> {
+      attempts.countDown();
+      throw new IOException("Unavailable");
+    }, sentiments);
+
+    queue.submit(comment(1));
+    Assert.assertTrue(attempts.await(10, TimeUnit.SECONDS));
+    queue.close();
+
+    Assert.assertFalse(store.load(1).isPresent());
+    Assert.assertTrue(sentiments.isEmpty());
+  }
+
+  /** Test that the backfill analyzes only the comments that have no stored analysis */
+  @Test
+  public void testBackfill() throws Exception {
+    MapStore store = new MapStore();
+    store.save(1, complete(.75f));
+    Map<Long, Float> sentiments = new ConcurrentHashMap<>();
+    AtomicInteger analyzed = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(3);
+    AnalysisQueue queue = new AnalysisQueue(new AnalysisCache(10, store), comment -> {
+      analyzed.incrementAndGet();
+      return complete(comment.getId());
+    }, (id, analysis) -> {
+      sentiments.put(id, analysis.getTextSentiment());
+      done.countDown();
+    }, 2, 8, 1, 0);
+
+    queue.startBackfill(() -> Arrays.asList(comment(3), comment(2), comment(1)));
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    queue.close();
+
+    Assert.assertEquals(2, analyzed.get());
+    // The stored analysis is reported too, so that comments can be sorted by it
+    Assert.assertEquals(.75f, sentiments.get(1L), 0);
+    Assert.assertEquals(3f, sentiments.get(3L), 0);
+    Assert.assertTrue(store.load(2).isPresent());
+  }
+
+  /** Test that stored analyses are all reported before any comment is analyzed */
+  @Test
+  public void testBackfillRestoresFirst() throws Exception {
+    MapStore store = new MapStore();
+    for (long id = 1; id <= 3; id++) {
+      store.save(id, complete(id));
+    }
+    Map<Long, Float> sentiments = new ConcurrentHashMap<>();
+    CountDownLatch restored = new CountDownLatch(3);
+    // Long enough that nothing after the first analysis would be reached during the test
+    AnalysisQueue queue = new AnalysisQueue(new AnalysisCache(10, store),
+        comment -> complete(comment.getId()), (id, analysis) -> {
+          sentiments.put(id, analysis.getTextSentiment());
+          restored.countDown();
+        }, 2, 8, 1, 60000);
+
+    queue.startBackfill(() -> Arrays.asList(comment(5), comment(4), comment(3), comment(2),
+        comment(1)));
+    Assert.assertTrue(restored.await(10, TimeUnit.SECONDS));
+    queue.close();
+
+    Assert.assertEquals(2f, sentiments.get(2L), 0);
+    Assert.assertFalse(store.load(4).isPresent());
+  }
+
+  /** Test that the backfill waits for a full queue to drain instead of stopping */
+  @Test
+  public void testBackfillFullQueue() throws Exception {
+    MapStore store = new MapStore();
+    Map<Long, Float> sentiments = new ConcurrentHashMap<>();
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AnalysisQueue queue = new AnalysisQueue(new AnalysisCache(10, store), comment -> {
+      if (comment.getId() == 100) {
+        blocked.countDown();
+        Uninterruptibles.awaitUninterruptibly(release);
+      }
+      return complete(comment.getId());
+    }, (id, analysis) -> sentiments.put(id, analysis.getTextSentiment()), 1, 2, 1, 0);
+
+    // One comment holds the only worker while two more fill the queue
+    Assert.assertTrue(queue.submit(comment(100)));
+    Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(queue.submit(comment(101)));
+    Assert.assertTrue(queue.submit(comment(102)));
+    queue.startBackfill(() -> Arrays.asList(comment(2), comment(1)));
+    Thread.sleep(50);
+    release.countDown();
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (sentiments.size() < 5 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    queue.close();
+
+    Assert.assertEquals(1f, sentiments.get(1L), 0);
+    Assert.assertEquals(2f, sentiments.get(2L), 0);
+  }
+}
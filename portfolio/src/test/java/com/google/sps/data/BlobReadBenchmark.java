@@ -0,0 +1,93 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.protobuf.ByteString;
+
+/**
+ * JMH benchmarks for reading an uploaded image into the ByteString sent to GCloud vision: the
+ * pre-sized read used by CommentAnalysis, against the growing buffer and copies it replaced. The
+ * blob is served from memory in Blobstore-sized chunks, so the gc.alloc.rate.norm figures from the
+ * gc profiler, which the benchmarks profile enables, show the bytes allocated per image. Run with,
+ * for example:
+ *
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="BlobReadBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class BlobReadBenchmark {
+  private static final int FETCH_SIZE = BlobstoreService.MAX_BLOB_FETCH_SIZE;
+
+  /** Size of the image, in MiB. */
+  @Param({"1", "4", "10"})
+  private int megabytes;
+
+  private byte[] blob;
+
+  @Setup
+  public void setUp() {
+    blob = new byte[megabytes << 20];
+    Arrays.fill(blob, (byte) 0x5a);
+  }
+
+  /** Returns a copy of the chunk from start to end, like BlobstoreService.fetchData does. */
+  private byte[] fetch(long start, long end) {
+    return Arrays.copyOfRange(blob, (int) Math.min(start, blob.length),
+        (int) Math.min(end + 1, blob.length));
+  }
+
+  @Benchmark
+  public ByteString presized() throws IOException {
+    return CommentAnalysis.readBlob(blob.length, FETCH_SIZE, this::fetch);
+  }
+
+  /** The read CommentAnalysis used to do: chunks appended to a growing buffer, then copied. */
+  @Benchmark
+  public ByteString unsized() throws IOException {
+    ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
+    long currentByteIndex = 0;
+    while (true) {
+      byte[] b = fetch(currentByteIndex, currentByteIndex + FETCH_SIZE - 1);
+      outputBytes.write(b);
+      if (b.length < FETCH_SIZE) {
+        break;
+      }
+      currentByteIndex += FETCH_SIZE;
+    }
+    return ByteString.copyFrom(outputBytes.toByteArray());
+  }
+}
@@ -17,10 +17,14 @@ package com.google.sps.data;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import com.google.cloud.language.v1.AnalyzeSentimentResponse;
 import com.google.cloud.language.v1.Document;
 import com.google.cloud.language.v1.LanguageServiceClient;
 import com.google.cloud.language.v1.Sentiment;
+import com.google.protobuf.ByteString;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -50,5 +54,58 @@ public class CommentAnalysisTest {
     Assert.assertEquals(expectedSentiment, analysis.getTextSentiment(), .001);
   }
 
+  /** Returns a fetcher reading from blob, which records the ranges asked for in fetches. */
+  private static CommentAnalysis.BlobFetcher fetcher(byte[] blob, List<long[]> fetches) {
+    return (start, end) -> {
+      fetches.add(new long[] {start, end});
+      return Arrays.copyOfRange(blob, (int) Math.min(start, blob.length),
+          (int) Math.min(end + 1, blob.length));
+    };
+  }
+
+  private static byte[] blob(int size) {
+    byte[] blob = new byte[size];
+    for (int i = 0; i < size; i++) {
+      blob[i] = (byte) i;
+    }
+    return blob;
+  }
+
+  /** Test that a blob is read in chunks, the last one only as long as what is left */
+  @Test
+  public void testReadBlob() throws Exception {
+    byte[] blob = blob(10);
+    List<long[]> fetches = new ArrayList<>();
 
+    ByteString bytes = CommentAnalysis.readBlob(10, 4, fetcher(blob, fetches));
+
+    Assert.assertArrayEquals(blob, bytes.toByteArray());
+    Assert.assertEquals(3, fetches.size());
+    Assert.assertArrayEquals(new long[] {0, 3}, fetches.get(0));
+    Assert.assertArrayEquals(new long[] {4, 7}, fetches.get(1));
+    Assert.assertArrayEquals(new long[] {8, 9}, fetches.get(2));
+  }
+
+  /** Test that reading stops at the end of a blob shorter than its recorded size */
+  @Test
+  public void testReadBlobShorterThanSize() throws Exception {
+    byte[] blob = blob(6);
+    List<long[]> fetches = new ArrayList<>();
+
+    ByteString bytes = CommentAnalysis.readBlob(10, 4, fetcher(blob, fetches));
+
+    Assert.assertArrayEquals(blob, bytes.toByteArray());
+    Assert.assertEquals(2, fetches.size());
+  }
+
+  /** Test that an empty blob is never fetched */
+  @Test
+  public void testReadEmptyBlob() throws Exception {
+    List<long[]> fetches = new ArrayList<>();
+
+    ByteString bytes = CommentAnalysis.readBlob(0, 4, fetcher(new byte[0], fetches));
+
+    Assert.assertEquals(0, bytes.size());
+    Assert.assertTrue(fetches.isEmpty());
+  }
 }
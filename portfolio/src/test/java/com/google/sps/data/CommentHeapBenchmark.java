@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the heap retained per cached comment: an array of Comment objects indexed by
+ * ID, which is how CommentTimeline used to hold them, against the columns it uses now. Each call
+ * builds a million comments and reports the growth of the heap, after full collections, as the
+ * bytesPerComment counter. The time of each call includes those collections, so only the counter
+ * is worth reading. Run with, for example:
+ *
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="CommentHeapBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+// JMH adds up counters across iterations, so a single one keeps the counter per comment
+@Measurement(iterations = 1, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class CommentHeapBenchmark {
+  /** Comments held by each representation. */
+  private static final int COMMENTS = 1000000;
+  /** Number of distinct commenters. */
+  private static final int AUTHORS = 500;
+
+  /** Heap retained by the last call, which JMH reports next to the time. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Retained {
+    public long bytesPerComment;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytesPerComment = 0;
+    }
+  }
+
+  @Benchmark
+  public void objects(Retained retained, Blackhole blackhole) {
+    measure(count -> {
+      Comment[] comments = new Comment[count];
+      LongIntHashMap slotsById = new LongIntHashMap();
+      for (int i = 0; i < count; i++) {
+        comments[i] = newComment(i);
+        slotsById.put(comments[i].getId(), i);
+      }
+      return new Object[] {comments, slotsById, new boolean[count]};
+    }, retained, blackhole);
+  }
+
+  @Benchmark
+  public void columns(Retained retained, Blackhole blackhole) {
+    measure(count -> {
+      CommentTimeline timeline = new CommentTimeline();
+      for (int i = 0; i < count; i++) {
+        timeline.add(newComment(i));
+      }
+      return timeline;
+    }, retained, blackhole);
+  }
+
+  /** Returns a comment like those posted on the site, with a fresh copy of each string. */
+  private static Comment newComment(int i) {
+    // Datastore returns a new String for every name, even when it repeats
+    return new Comment("This is comment number " + i + ", which says something nice about it.",
+        "Commenter " + (i % AUTHORS), null, 1500000000000L + i, i % 5 == 0 ? "/image/" + i : null,
+        null);
+  }
+
+  /** Records the average heap retained per comment by what build returns. */
+  private static void measure(IntFunction<Object> build, Retained retained, Blackhole blackhole) {
+    long before = usedHeap();
+    Object built = build.apply(COMMENTS);
+    long after = usedHeap();
+    // Consumed only now, so that it can't be collected before the heap is measured
+    blackhole.consume(built);
+    retained.bytesPerComment = (after - before) / COMMENTS;
+  }
+
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import com.google.appengine.api.blobstore.BlobKey;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the CommentJsonAdapter class */
+@RunWith(JUnit4.class)
+public class CommentJsonAdapterTest {
+  /** Test serializing comments with and without an image */
+  @Test
+  public void testWriteList() throws IOException {
+    Comment plain = new Comment("Hello \"world\"", "Alice", null, 1000, null, null);
+    Comment picture = new Comment("Look", "Bob", null, 2000, "/image/abc", null);
+
+    StringWriter writer = new StringWriter();
+    new CommentJsonAdapter().writeList(Arrays.asList(plain, picture), writer);
+
+    String expected = "[{\"text\":\"Hello \\\"world\\\"\",\"name\":\"Alice\",\"timestamp\":1000,"
+        + "\"id\":" + plain.getId() + ",\"imageUrl\":{}},"
+        + "{\"text\":\"Look\",\"name\":\"Bob\",\"timestamp\":2000,\"id\":" + picture.getId()
+        + ",\"imageUrl\":{\"value\":\"/image/abc\"}}]";
+    Assert.assertEquals(expected, writer.toString());
+  }
+
+  /** Test that missing fields are left out rather than written as null */
+  @Test
+  public void testNullFields() throws IOException {
+    Comment comment = new Comment(null, "Alice", null, 1000, null, null);
+
+    StringWriter writer = new StringWriter();
+    new CommentJsonAdapter().writeList(Collections.singletonList(comment), writer);
+
+    String expected = "[{\"name\":\"Alice\",\"timestamp\":1000,\"id\":" + comment.getId()
+        + ",\"imageUrl\":{}}]";
+    Assert.assertEquals(expected, writer.toString());
+  }
+
+  /** Test that the BlobKey of a comment's image isn't sent */
+  @Test
+  public void testBlobKeyLeftOut() throws IOException {
+    Comment comment = new Comment("Look", "Bob", null, 2000, "/image/abc", new BlobKey("abc"));
+
+    StringWriter writer = new StringWriter();
+    new CommentJsonAdapter().writeList(Collections.singletonList(comment), writer);
+
+    String expected = "[{\"text\":\"Look\",\"name\":\"Bob\",\"timestamp\":2000,\"id\":"
+        + comment.getId() + ",\"imageUrl\":{\"value\":\"/image/abc\"}}]";
+    Assert.assertEquals(expected, writer.toString());
+  }
+}
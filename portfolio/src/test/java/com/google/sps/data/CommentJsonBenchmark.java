@@ -0,0 +1,99 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+
+/**
+ * JMH benchmarks for writing one page of comments to the response: a new Gson per request, with
+ * reflection and an intermediate String, as DataServlet used to do, against CommentJsonAdapter
+ * streaming onto the writer, and CommentJsonCache copying each comment's pre-encoded bytes onto the
+ * output stream. The gc.alloc.rate.norm figures from the gc profiler, which the benchmarks profile
+ * enables, show the bytes allocated per page. Run with, for example:
+ *
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="CommentJsonBenchmark"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommentJsonBenchmark {
+  /** Comments per page; matches what comments.js asks for at most. */
+  private static final int PAGE_SIZE = 50;
+
+  private final List<Comment> page = new ArrayList<>(PAGE_SIZE);
+  private final CommentJsonAdapter adapter = new CommentJsonAdapter();
+  private final CommentJsonCache cache = new CommentJsonCache();
+  /** Stand-in for the servlet's output stream. */
+  private OutputStream out;
+  /**
+   * Stand-in for the servlet's writer, which leads to the socket. Buffered, since the container's
+   * writer copies each write into its buffer, while an unbuffered OutputStreamWriter allocates a
+   * char array for every String written to it.
+   */
+  private PrintWriter writer;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < PAGE_SIZE; i++) {
+      page.add(new Comment("This is comment number " + i + ", which says something nice.",
+          "Commenter " + i, null, 1500000000000L + i, i % 2 == 0 ? "/image/" + i : null, null));
+    }
+    out = ByteStreams.nullOutputStream();
+    writer =
+        new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+  }
+
+  /** What DataServlet used to do. */
+  @Benchmark
+  public void gsonPerRequest() {
+    writer.println(new Gson().toJson(page));
+  }
+
+  @Benchmark
+  public void adapter() throws IOException {
+    adapter.writeList(page, writer);
+  }
+
+  /** Each comment is encoded by the first call, and copied from then on. */
+  @Benchmark
+  public void cache() throws IOException {
+    cache.writeList(page, out);
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the CommentJsonCache class */
+@RunWith(JUnit4.class)
+public class CommentJsonCacheTest {
+  /** Test that cached output is the same as streaming through the adapter */
+  @Test
+  public void testMatchesAdapter() throws IOException {
+    List<Comment> comments = Arrays.asList(
+        new Comment("Caf\u00e9 <b>", "Alice", null, 1000, null, null),
+        new Comment("Look", "Bob", null, 2000, "/image/abc", null));
+
+    StringWriter expected = new StringWriter();
+    new CommentJsonAdapter().writeList(comments, expected);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    new CommentJsonCache().writeList(comments, actual);
+
+    Assert.assertEquals(expected.toString(), new String(actual.toByteArray(),
+        StandardCharsets.UTF_8));
+  }
+
+  /** Test that a comment is only encoded once */
+  @Test
+  public void testMemoized() {
+    Comment comment = new Comment("Text", "Name", null, 1000, null, null);
+    CommentJsonCache cache = new CommentJsonCache();
+    Assert.assertSame(cache.getFragment(comment), cache.getFragment(comment));
+  }
+
+  /** Test that the cache stays within its size limit */
+  @Test
+  public void testEviction() {
+    Comment comment = new Comment("Text", "Name", null, 1000, null, null);
+    int fragmentSize = new CommentJsonCache().getFragment(comment).length;
+    CommentJsonCache cache = new CommentJsonCache(fragmentSize * 2);
+
+    for (int i = 0; i < 10; i++) {
+      cache.getFragment(new Comment("Text", "Name", null, 1000, null, null));
+    }
+    Assert.assertTrue(cache.size() <= 2);
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the CommentLog class */
+@RunWith(JUnit4.class)
+public class CommentLogTest {
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = Files.createTempFile("comments", ".log");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  /** Test that logged comments are recovered when the log is opened again, minus deletes */
+  @Test
+  public void testRecover() throws IOException {
+    Comment first = new Comment("First", "Name", null, 100, "/image/1", null);
+    Comment second = new Comment("Caf\u00e9", "Name", null, 200, null, null);
+    Comment third = new Comment("Third", "Name", null, 300, null, null);
+    try (CommentLog log = new CommentLog(path)) {
+      Assert.assertEquals(Collections.emptyList(), log.recovered());
+      log.appendPut(first);
+      log.appendPut(second);
+      log.appendPut(third);
+      log.appendDelete(second.getId());
+    }
+
+    try (CommentLog log = new CommentLog(path)) {
+      Assert.assertEquals(Arrays.asList(first, third), log.recovered());
+      Assert.assertEquals(first.getImageUrl(), log.recovered().get(0).getImageUrl());
+    }
+  }
+
+  /** Test that a torn record at the end is dropped, and that later records still count */
+  @Test
+  public void testTornRecord() throws IOException {
+    Comment first = new Comment("First", "Name", null, 100, null, null);
+    try (CommentLog log = new CommentLog(path)) {
+      log.appendPut(first);
+    }
+    // Half of a record header
+    Files.write(path, new byte[] {0, 0}, StandardOpenOption.APPEND);
+
+    Comment second = new Comment("Second", "Name", null, 200, null, null);
+    try (CommentLog log = new CommentLog(path)) {
+      Assert.assertEquals(Arrays.asList(first), log.recovered());
+      log.appendPut(second);
+    }
+    try (CommentLog log = new CommentLog(path)) {
+      Assert.assertEquals(Arrays.asList(first, second), log.recovered());
+    }
+  }
+
+  /** Test that a rewritten log recovers only what it was rewritten with, and what came after */
+  @Test
+  public void testRewrite() throws IOException {
+    Comment first = new Comment("First", "Name", null, 100, null, null);
+    Comment second = new Comment("Second", "Name", null, 200, null, null);
+    Comment third = new Comment("Third", "Name", null, 300, null, null);
+    try (CommentLog log = new CommentLog(path)) {
+      log.appendPut(first);
+      log.appendPut(second);
+      long before = log.size();
+      log.rewrite(Arrays.asList(second));
+      Assert.assertTrue(log.size() < before);
+      log.appendPut(third);
+    }
+
+    try (CommentLog log = new CommentLog(path)) {
+      Assert.assertEquals(Arrays.asList(second, third), log.recovered());
+    }
+  }
+
+  /** Test that a cleared log recovers nothing */
+  @Test
+  public void testClear() throws IOException {
+    try (CommentLog log = new CommentLog(path)) {
+      log.appendPut(new Comment("First", "Name", null, 100, null, null));
+      log.clear();
+    }
+    try (CommentLog log = new CommentLog(path)) {
+      Assert.assertEquals(Collections.emptyList(), log.recovered());
+    }
+  }
+}
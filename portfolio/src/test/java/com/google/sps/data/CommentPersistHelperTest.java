@@ -0,0 +1,335 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.sps.data.CommentPersistHelper.SortKey;
+import com.google.sps.data.CommentPersistHelper.SortMethod;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the CommentPersistHelper class */
+@RunWith(JUnit4.class)
+public class CommentPersistHelperTest {
+  private Path storage;
+  private LocalCommentRepository repository;
+  private CommentPersistHelper helper;
+  /** Comments added to the helper, oldest first. */
+  private List<Comment> comments;
+
+  @Before
+  public void setUp() throws IOException {
+    storage = Files.createTempFile("comments", ".db");
+    repository = new LocalCommentRepository(storage);
+    helper = new CommentPersistHelper(repository, null);
+    helper.finishLoading();
+    comments = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      // Every third comment mentions chickens
+      String text = i % 3 == 0 ? "I like chickens" : "Comment number " + i;
+      Comment comment = new Comment(text, "Name", null, 1000 + i, null, null);
+      comments.add(comment);
+      helper.addToCache(comment);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    repository.close();
+    Files.deleteIfExists(storage);
+  }
+
+  /** Test reading forward through every page, newest first */
+  @Test
+  public void testPageForward() {
+    CommentPage first = helper.getPage(4, SortMethod.ASCENDING, null, false, null);
+    Assert.assertEquals(Arrays.asList(comments.get(9), comments.get(8), comments.get(7),
+        comments.get(6)), first.getComments());
+    Assert.assertFalse(first.getPrevious().isPresent());
+
+    CommentPage second =
+        helper.getPage(4, SortMethod.ASCENDING, first.getNext().get(), false, null);
+    Assert.assertEquals(Arrays.asList(comments.get(5), comments.get(4), comments.get(3),
+        comments.get(2)), second.getComments());
+
+    CommentPage last =
+        helper.getPage(4, SortMethod.ASCENDING, second.getNext().get(), false, null);
+    Assert.assertEquals(Arrays.asList(comments.get(1), comments.get(0)), last.getComments());
+    Assert.assertFalse(last.getNext().isPresent());
+    Assert.assertTrue(last.getPrevious().isPresent());
+  }
+
+  /** Test that a cursor keeps its place when newer comments are added */
+  @Test
+  public void testCursorStable() {
+    CommentPage first = helper.getPage(3, SortMethod.ASCENDING, null, false, null);
+    helper.addToCache(new Comment("Newest", "Name", null, 5000, null, null));
+
+    CommentPage second =
+        helper.getPage(3, SortMethod.ASCENDING, first.getNext().get(), false, null);
+    Assert.assertEquals(comments.get(6), second.getComments().get(0));
+  }
+
+  /** Test reading the page before a cursor */
+  @Test
+  public void testPageBackward() {
+    CommentPage first = helper.getPage(4, SortMethod.DESCENDING, null, false, null);
+    CommentPage second =
+        helper.getPage(4, SortMethod.DESCENDING, first.getNext().get(), false, null);
+
+    CommentPage back =
+        helper.getPage(4, SortMethod.DESCENDING, second.getPrevious().get(), true, null);
+    Assert.assertEquals(first.getComments(), back.getComments());
+    Assert.assertFalse(back.getPrevious().isPresent());
+    Assert.assertTrue(back.getNext().isPresent());
+  }
+
+  /** Test that filtered pages skip comments that don't match */
+  @Test
+  public void testPageFiltered() {
+    CommentPage first = helper.getPage(2, SortMethod.DESCENDING, null, false, "chicken");
+    Assert.assertEquals(Arrays.asList(comments.get(0), comments.get(3)), first.getComments());
+
+    CommentPage second =
+        helper.getPage(2, SortMethod.DESCENDING, first.getNext().get(), false, "chicken");
+    Assert.assertEquals(Arrays.asList(comments.get(6), comments.get(9)), second.getComments());
+    Assert.assertFalse(second.getNext().isPresent());
+  }
+
+  /** Test that a page knows the number of comments across all pages */
+  @Test
+  public void testTotalCount() {
+    Assert.assertEquals(10, helper.getPage(3, SortMethod.ASCENDING, 0, null).getTotalCount());
+    CommentPage filtered = helper.getPage(3, SortMethod.ASCENDING, 3, "chicken");
+    Assert.assertEquals(Arrays.asList(comments.get(0)), filtered.getComments());
+    Assert.assertEquals(4, filtered.getTotalCount());
+  }
+
+  /** Test that cached filter results are dropped after a write */
+  @Test
+  public void testFilterCacheInvalidated() {
+    Assert.assertEquals(4, helper.getNumberComments("chicken"));
+    Comment added = new Comment("More chickens", "Name", null, 5000, null, null);
+    helper.addToCache(added);
+    Assert.assertEquals(5, helper.getNumberComments("chicken"));
+
+    helper.deleteComment(added.getId());
+    Assert.assertEquals(4, helper.getNumberComments("chicken"));
+  }
+
+  /** Test that a cursor survives being encoded and decoded */
+  @Test
+  public void testCursorToken() {
+    PageCursor cursor = PageCursor.of(comments.get(4));
+    Assert.assertEquals(cursor, PageCursor.decode(cursor.encode()));
+  }
+
+  /** Test that a malformed cursor is rejected */
+  @Test(expected = IllegalArgumentException.class)
+  public void testCursorMalformed() {
+    PageCursor.decode("not a cursor!");
+  }
+
+  /** Test that a batch delete removes every comment at once and reports unknown IDs */
+  @Test
+  public void testDeleteBatch() {
+    long missing = comments.get(9).getId() + 1000;
+    DeleteResult result = helper.deleteComments(
+        Arrays.asList(comments.get(0).getId(), comments.get(3).getId(), missing));
+
+    Assert.assertTrue(result.isSuccessful());
+    Assert.assertEquals(Arrays.asList(comments.get(0).getId(), comments.get(3).getId()),
+        result.getDeleted());
+    Assert.assertEquals(Arrays.asList(missing), result.getNotFound());
+    Assert.assertEquals(8, helper.getNumberComments());
+    Assert.assertEquals(2, helper.getNumberComments("chicken"));
+    Assert.assertFalse(helper.getCommentById(comments.get(3).getId()).isPresent());
+  }
+
+  /** Test that a failed delete is told apart from a successful one of an equal comment */
+  @Test
+  public void testDeleteFailureOfEqualComment() {
+    Comment kept = new Comment("Twin", "Name", 100, null, 5000, null, null);
+    Comment gone = new Comment("Twin", "Name", 101, null, 5000, null, null);
+    CommentRepository failing = new CommentRepository() {
+      @Override
+      public Comment add(String text, String name, long timestamp, String imageUrl,
+          BlobKey blobKey) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public List<Comment> delete(List<Comment> deleted) {
+        return deleted.stream().filter(comment -> comment.getId() == kept.getId())
+            .collect(Collectors.toList());
+      }
+
+      @Override
+      public void load(long before, Consumer<List<Comment>> consumer) {}
+    };
+    CommentPersistHelper twins = new CommentPersistHelper(failing, null);
+    twins.finishLoading();
+    twins.addToCache(kept);
+    twins.addToCache(gone);
+
+    DeleteResult result = twins.deleteComments(Arrays.asList(kept.getId(), gone.getId()));
+
+    Assert.assertEquals(Arrays.asList(gone.getId()), result.getDeleted());
+    Assert.assertEquals(Arrays.asList(kept.getId()), result.getFailed());
+    Assert.assertTrue(twins.getCommentById(kept.getId()).isPresent());
+    Assert.assertFalse(twins.getCommentById(gone.getId()).isPresent());
+  }
+
+  /** Test that deleting comments deletes their stored analyses, and only theirs */
+  @Test
+  public void testDeleteAnalyses() {
+    Map<Long, CommentAnalysis> stored = new HashMap<>();
+    AnalysisStore store = new AnalysisStore() {
+      @Override
+      public Optional<CommentAnalysis> load(long commentId) {
+        return Optional.ofNullable(stored.get(commentId));
+      }
+
+      @Override
+      public Map<Long, CommentAnalysis> loadAll(Collection<Long> commentIds) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void save(long commentId, CommentAnalysis analysis) {
+        stored.put(commentId, analysis);
+      }
+
+      @Override
+      public void delete(Collection<Long> commentIds) {
+        stored.keySet().removeAll(commentIds);
+      }
+    };
+    CommentPersistHelper analyzed = new CommentPersistHelper(repository, null, store);
+    analyzed.finishLoading();
+    for (Comment comment : comments) {
+      analyzed.addToCache(comment);
+      store.save(comment.getId(), new CommentAnalysis(Collections.emptyList(), .5f));
+    }
+
+    analyzed.deleteComments(Arrays.asList(comments.get(0).getId(), comments.get(3).getId()));
+
+    Assert.assertEquals(8, stored.size());
+    Assert.assertFalse(stored.containsKey(comments.get(0).getId()));
+    Assert.assertFalse(stored.containsKey(comments.get(3).getId()));
+    Assert.assertTrue(stored.containsKey(comments.get(1).getId()));
+  }
+
+  /** Test that the newest page is served while older comments are still loading */
+  @Test
+  public void testWarmUp() throws InterruptedException {
+    CommentPersistHelper warming = new CommentPersistHelper(repository, null);
+    warming.addLoadedChunk(comments.subList(5, 10));
+
+    CommentPage first = warming.getPage(4, SortMethod.ASCENDING, null, false, null);
+    Assert.assertEquals(Arrays.asList(comments.get(9), comments.get(8), comments.get(7),
+        comments.get(6)), first.getComments());
+
+    // The next page reaches past the loaded comments, so it waits for the rest
+    Thread loader = new Thread(() -> {
+      warming.addLoadedChunk(comments.subList(0, 5));
+      warming.finishLoading();
+    });
+    loader.start();
+    CommentPage second =
+        warming.getPage(4, SortMethod.ASCENDING, first.getNext().get(), false, null);
+    Assert.assertEquals(Arrays.asList(comments.get(5), comments.get(4), comments.get(3),
+        comments.get(2)), second.getComments());
+    Assert.assertEquals(10, second.getTotalCount());
+    loader.join();
+  }
+
+  /** Test ordering by name and by length, with equal keys newest first */
+  @Test
+  public void testSortByNameAndLength() {
+    Comment zoe = new Comment("Hi", "zoe", null, 2000, null, null);
+    Comment adam = new Comment("A much longer comment than the others", "Adam", null, 2001, null,
+        null);
+    helper.addToCache(zoe);
+    helper.addToCache(adam);
+
+    CommentPage byName = helper.getPage(3, SortMethod.ASCENDING, SortKey.NAME, 0, null);
+    Assert.assertEquals(Arrays.asList(adam, comments.get(9), comments.get(8)),
+        byName.getComments());
+    Assert.assertEquals(12, byName.getTotalCount());
+    Assert.assertEquals(Arrays.asList(zoe, comments.get(0)),
+        helper.getPage(2, SortMethod.DESCENDING, SortKey.NAME, 0, null).getComments());
+
+    Assert.assertEquals(Arrays.asList(zoe, comments.get(9)),
+        helper.getPage(2, SortMethod.ASCENDING, SortKey.LENGTH, 0, null).getComments());
+    Assert.assertEquals(Arrays.asList(adam),
+        helper.getPage(1, SortMethod.DESCENDING, SortKey.LENGTH, 0, null).getComments());
+
+    helper.deleteComment(adam.getId());
+    Assert.assertEquals(Arrays.asList(comments.get(9)),
+        helper.getPage(1, SortMethod.ASCENDING, SortKey.NAME, 0, null).getComments());
+  }
+
+  /** Test that only analyzed comments are ordered by sentiment, filtered or not */
+  @Test
+  public void testSortBySentiment() {
+    helper.recordSentiment(comments.get(2).getId(), .5f);
+    helper.recordSentiment(comments.get(3).getId(), -.5f);
+    helper.recordSentiment(comments.get(6).getId(), .9f);
+    helper.recordSentiment(comments.get(6).getId(), 0);
+
+    CommentPage page = helper.getPage(10, SortMethod.ASCENDING, SortKey.SENTIMENT, 0, null);
+    Assert.assertEquals(Arrays.asList(comments.get(3), comments.get(6), comments.get(2)),
+        page.getComments());
+    Assert.assertEquals(3, page.getTotalCount());
+    Assert.assertEquals(Arrays.asList(comments.get(6), comments.get(3)), helper.getPage(10,
+        SortMethod.DESCENDING, SortKey.SENTIMENT, 0, "chicken").getComments());
+
+    helper.deleteComment(comments.get(3).getId());
+    Assert.assertEquals(Arrays.asList(comments.get(6), comments.get(2)), helper.getPage(10,
+        SortMethod.ASCENDING, SortKey.SENTIMENT, 0, null).getComments());
+  }
+
+  /** Test that recording a comment's sentiment again leaves the version alone */
+  @Test
+  public void testRecordSameSentiment() {
+    long id = comments.get(2).getId();
+    helper.recordSentiment(id, .5f);
+    String version = helper.getVersion();
+
+    helper.recordSentiment(id, .5f);
+    Assert.assertEquals(version, helper.getVersion());
+
+    helper.recordSentiment(id, -.5f);
+    Assert.assertNotEquals(version, helper.getVersion());
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.common.io.ByteStreams;
+import com.google.sps.data.CommentPersistHelper.SortMethod;
+
+/**
+ * JMH benchmarks for the in-memory comment store behind DataServlet: reading pages in both orders,
+ * filtered reads with and without a cached result, deep pagination, inserts, deletes, and readers
+ * racing a writer. Storage is a no-op, so only the cache is measured. Lives in this package to
+ * reach CommentPersistHelper's package-private constructor. Not run as part of the test suite.
+ * Run with, for example:
+ *
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="CommentStoreBenchmark -p size=100000"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class CommentStoreBenchmark {
+  /** Comments per page; matches what comments.js asks for at most. */
+  private static final int PAGE_SIZE = 50;
+  /** One in this many comments mentions the filtered word. */
+  private static final int MATCH_EVERY = 10;
+  /**
+   * Distinct filters cycled through by {@link #filteredUncached}. More than the helper caches, so
+   * every search misses.
+   */
+  private static final String[] FILTERS = new String[64];
+
+  static {
+    for (int i = 0; i < FILTERS.length; i++) {
+      FILTERS[i] = "number " + (i + 1) + "0";
+    }
+  }
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  private CommentPersistHelper helper;
+  private final CommentJsonCache jsonCache = new CommentJsonCache();
+  /** Stand-in for the servlet's output stream, which leads to the socket. */
+  private final OutputStream out = ByteStreams.nullOutputStream();
+  /** Points at the comment 90% of the way down the newest-first timeline. */
+  private PageCursor deepCursor;
+  private int deepOffset;
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong nextTimestamp = new AtomicLong();
+
+  /** Storage that keeps nothing, so that benchmarks don't measure disk or network. */
+  private class NullRepository implements CommentRepository {
+    @Override
+    public Comment add(String text, String name, long timestamp, @Nullable String imageUrl,
+        @Nullable BlobKey blobKey) {
+      return newComment(text, name, timestamp, imageUrl);
+    }
+
+    @Override
+    public List<Comment> delete(List<Comment> comments) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void load(long before, Consumer<List<Comment>> consumer) {}
+  }
+
+  /** Builds a fresh store of size comments before each iteration, since some benchmarks grow it. */
+  @Setup(Level.Iteration)
+  public void setUp() {
+    nextId.set(0);
+    helper = new CommentPersistHelper(new NullRepository(), null);
+
+    // Loaded newest first, like from Datastore
+    List<Comment> all = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      all.add(newComment(i));
+    }
+    Collections.reverse(all);
+    helper.addLoadedChunk(all);
+    helper.finishLoading();
+    nextTimestamp.set(size);
+
+    deepOffset = size / 10 * 9;
+    List<Comment> deep = helper.getPage(1, SortMethod.ASCENDING, deepOffset, null).getComments();
+    deepCursor = deep.isEmpty() ? null : PageCursor.of(deep.get(0));
+  }
+
+  @Benchmark
+  public void newestPage() throws IOException {
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.ASCENDING, 0, null));
+  }
+
+  @Benchmark
+  public void oldestPage() throws IOException {
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.DESCENDING, 0, null));
+  }
+
+  /** The same search every time, answered from the filter result cache. */
+  @Benchmark
+  public void filteredCached() throws IOException {
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.ASCENDING, 0, "chicken"));
+  }
+
+  /** A different search every time, so the trigram index is queried. */
+  @Benchmark
+  public void filteredUncached() throws IOException {
+    String filter = FILTERS[ThreadLocalRandom.current().nextInt(FILTERS.length)];
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.ASCENDING, 0, filter));
+  }
+
+  @Benchmark
+  public void deepPageByOffset() throws IOException {
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.ASCENDING, deepOffset, null));
+  }
+
+  @Benchmark
+  public void deepPageByCursor() throws IOException {
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.ASCENDING, deepCursor, false, null));
+  }
+
+  @Benchmark
+  public void insert() {
+    helper.addToCache(newComment(nextTimestamp.getAndIncrement()));
+  }
+
+  /**
+   * Picks a random comment for {@link #delete} before each call, and puts back the one deleted by
+   * the call before, so that the store keeps its size. Putting it back is an insert into the
+   * middle of the timeline, which costs more than the delete, so it is left out of the timing.
+   */
+  @State(Scope.Thread)
+  public static class DeleteTarget {
+    private long id;
+    @Nullable
+    private Comment deleted;
+
+    /** The store is rebuilt for each iteration, with every comment in it. */
+    @Setup(Level.Iteration)
+    public void reset() {
+      deleted = null;
+    }
+
+    @Setup(Level.Invocation)
+    public void pick(CommentStoreBenchmark store) {
+      if (deleted != null) {
+        store.helper.addToCache(deleted);
+      }
+      id = ThreadLocalRandom.current().nextLong(store.size);
+      deleted = store.helper.getCommentById(id).orElse(null);
+    }
+  }
+
+  @Benchmark
+  public DeleteResult delete(DeleteTarget target) {
+    return helper.deleteComments(Collections.singleton(target.id));
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public void mixedRead() throws IOException {
+    writePage(helper.getPage(PAGE_SIZE, SortMethod.ASCENDING, 0, null));
+  }
+
+  /** Adds a new comment and deletes it again, invalidating cached results every time. */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public void mixedWrite() {
+    Comment comment = newComment(nextTimestamp.getAndIncrement());
+    helper.addToCache(comment);
+    helper.deleteComment(comment.getId());
+  }
+
+  private void writePage(CommentPage page) throws IOException {
+    jsonCache.writeList(page.getComments(), out);
+  }
+
+  /** Returns a comment posted at timestamp, of which one in ten mentions chicken. */
+  private Comment newComment(long timestamp) {
+    String text = timestamp % MATCH_EVERY == 0
+        ? "Comment number " + timestamp + " is about chicken."
+        : "Comment number " + timestamp + " is about something else.";
+    return newComment(text, "Commenter " + timestamp % 100, timestamp,
+        timestamp % 2 == 0 ? "/image/" + timestamp : null);
+  }
+
+  private Comment newComment(String text, String name, long timestamp, @Nullable String imageUrl) {
+    return new Comment(text, name, nextId.getAndIncrement(), null, timestamp, imageUrl, null);
+  }
+}
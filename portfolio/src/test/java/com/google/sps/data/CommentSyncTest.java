@@ -0,0 +1,149 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the CommentSync class, with several instances sharing the local Datastore */
+@RunWith(JUnit4.class)
+public class CommentSyncTest {
+  private final LocalServiceTestHelper localDatastore = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+  private DatastoreService datastore;
+  private CommentSync firstSync;
+  private CommentPersistHelper first;
+  private CommentPersistHelper second;
+
+  @Before
+  public void setUp() {
+    localDatastore.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    firstSync = new CommentSync(datastore, 0);
+    first = new CommentPersistHelper(new DatastoreCommentRepository(datastore, null), firstSync);
+    first.finishLoading();
+    second = new CommentPersistHelper(new DatastoreCommentRepository(datastore, null),
+        new CommentSync(datastore, 0));
+    second.finishLoading();
+  }
+
+  @After
+  public void tearDown() {
+    localDatastore.tearDown();
+  }
+
+  /** Stores a comment the way one of the instances would */
+  private Comment store(String text, long timestamp) {
+    Entity entity = new Entity(Comment.KIND);
+    entity.setProperty(Comment.COMMENT_TEXT, text);
+    entity.setProperty(Comment.COMMENT_NAME, "Name");
+    entity.setProperty(Comment.COMMENT_TIMESTAMP, timestamp);
+    datastore.put(entity);
+    return Comment.fromEntity(entity);
+  }
+
+  /** Test that every instance picks up new comments, and only once */
+  @Test
+  public void testAdded() {
+    Comment hello = store("Hello", 1000);
+    Comment world = store("World", 2000);
+
+    first.sync();
+    second.sync();
+    second.sync();
+    Assert.assertEquals(2, first.getNumberComments());
+    Assert.assertEquals(2, second.getNumberComments());
+    Assert.assertEquals(Arrays.asList(world, hello),
+        second.getPage(10, CommentPersistHelper.SortMethod.ASCENDING, 0, null).getComments());
+  }
+
+  /** Test that comments older than this instance's newest are merged in order, and indexed */
+  @Test
+  public void testAddedAmongLocal() {
+    Comment local = new Comment("Local", "Name", 10, null, 3000, null, null);
+    first.addToCache(local);
+    Comment hello = store("Hello", 1000);
+    Comment world = store("World", 2000);
+
+    first.sync();
+    Assert.assertEquals(Arrays.asList(local, world, hello),
+        first.getPage(10, CommentPersistHelper.SortMethod.ASCENDING, 0, null).getComments());
+    Assert.assertEquals(Arrays.asList(world),
+        first.getPage(10, CommentPersistHelper.SortMethod.ASCENDING, 0, "world").getComments());
+    Assert.assertEquals(Optional.of(hello), first.getCommentById(hello.getId()));
+  }
+
+  /** Test that a delete on one instance reaches the other through its marker */
+  @Test
+  public void testDeleted() {
+    Comment hello = store("Hello", 1000);
+    first.sync();
+    second.sync();
+
+    datastore.delete(hello.getKey());
+    firstSync.recordDeletions(Collections.singletonList(hello.getId()));
+    first.sync();
+    second.sync();
+    Assert.assertEquals(0, first.getNumberComments());
+    Assert.assertFalse(second.getCommentById(hello.getId()).isPresent());
+  }
+
+  /** Test that comments from before the high-water mark are not reported again */
+  @Test
+  public void testHighWaterMark() {
+    store("Old", 1000);
+    Comment recent = store("Recent", 1000 + 2 * CommentSync.OVERLAP_MS);
+
+    CommentSync sync = new CommentSync(datastore, recent.getTimestamp());
+    Assert.assertEquals(Arrays.asList(recent), sync.poll().getAdded());
+  }
+
+  /** Test that expired markers are purged by the first poll, then not again for a while */
+  @Test
+  public void testPurgeThrottled() {
+    firstSync.recordDeletions(Collections.singletonList(1L));
+    Entity expired = new Entity(CommentSync.DELETION_KIND);
+    expired.setProperty(CommentSync.DELETED_ID, 2L);
+    expired.setProperty(CommentSync.DELETED_AT, 0L);
+    datastore.put(expired);
+
+    firstSync.poll();
+    Assert.assertEquals(1, countMarkers());
+
+    datastore.put(expired);
+    firstSync.poll();
+    Assert.assertEquals(2, countMarkers());
+  }
+
+  private int countMarkers() {
+    return datastore.prepare(new Query(CommentSync.DELETION_KIND))
+        .countEntities(FetchOptions.Builder.withDefaults());
+  }
+}
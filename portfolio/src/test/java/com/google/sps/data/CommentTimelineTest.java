@@ -0,0 +1,301 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.sps.data.CommentPersistHelper.SortMethod;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the CommentTimeline class */
+@RunWith(JUnit4.class)
+public class CommentTimelineTest {
+  private static Comment comment(long timestamp) {
+    return new Comment("Text", "Name", null, timestamp, null, null);
+  }
+
+  /** Test that both sort directions read in timestamp order, regardless of insertion order */
+  @Test
+  public void testOrder() {
+    Comment first = comment(100);
+    Comment second = comment(200);
+    Comment third = comment(300);
+
+    CommentTimeline timeline = new CommentTimeline();
+    timeline.add(second);
+    timeline.add(third);
+    // Out of order insertion
+    timeline.add(first);
+
+    Assert.assertEquals(Arrays.asList(third, second, first),
+        timeline.asList(SortMethod.ASCENDING));
+    Assert.assertEquals(Arrays.asList(first, second, third),
+        timeline.asList(SortMethod.DESCENDING));
+  }
+
+  /** Test that a batch of older comments is merged in order, keeping tombstones */
+  @Test
+  public void testAddAll() {
+    Comment first = comment(100);
+    Comment second = comment(200);
+    Comment third = comment(300);
+    Comment fourth = comment(400);
+
+    CommentTimeline timeline = new CommentTimeline();
+    timeline.add(fourth);
+    timeline.add(third);
+    timeline.remove(fourth.getId());
+    timeline.addAll(Arrays.asList(second, first));
+
+    Assert.assertEquals(Arrays.asList(first, second, third),
+        timeline.asList(SortMethod.DESCENDING));
+    Assert.assertEquals(1, timeline.tombstones());
+    Assert.assertEquals(Optional.of(second), timeline.get(second.getId()));
+    Assert.assertEquals(Optional.of(third), timeline.get(third.getId()));
+  }
+
+  /** Test that pages of ever older comments, like the loader's, are read back in order */
+  @Test
+  public void testAddOlderPages() {
+    CommentTimeline timeline = new CommentTimeline();
+    List<Comment> added = new ArrayList<>();
+    // Newest page first, each page newest first
+    for (int page = 9; page >= 0; page--) {
+      List<Comment> comments = new ArrayList<>();
+      for (int i = 99; i >= 0; i--) {
+        comments.add(comment(page * 100 + i));
+      }
+      timeline.addAll(comments);
+      added.addAll(0, comments);
+    }
+    added.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+
+    Assert.assertEquals(added, timeline.asList(SortMethod.DESCENDING));
+    for (Comment comment : added) {
+      Assert.assertEquals(Optional.of(comment), timeline.get(comment.getId()));
+    }
+  }
+
+  /** Test that random adds, removes and compactions match a plain sorted list */
+  @Test
+  public void testRandomOperations() {
+    Random random = new Random(42);
+    CommentTimeline timeline = new CommentTimeline();
+    List<Comment> expected = new ArrayList<>();
+    Comparator<Comment> order =
+        Comparator.comparingLong(Comment::getTimestamp).thenComparingLong(Comment::getId);
+    for (int round = 0; round < 300; round++) {
+      int operation = random.nextInt(10);
+      if (operation < 6) {
+        // A batch that may fall before, after or among the current comments
+        List<Comment> batch = new ArrayList<>();
+        int count = 1 + random.nextInt(20);
+        long base = random.nextInt(10000);
+        for (int i = 0; i < count; i++) {
+          batch.add(comment(base + random.nextInt(operation < 3 ? 10 : 10000)));
+        }
+        timeline.addAll(batch);
+        expected.addAll(batch);
+        expected.sort(order);
+      } else if (operation < 9 && !expected.isEmpty()) {
+        Comment removed = expected.remove(random.nextInt(expected.size()));
+        Assert.assertEquals(Optional.of(removed), timeline.remove(removed.getId()));
+      } else {
+        timeline.compact();
+      }
+
+      Assert.assertEquals(expected, timeline.asList(SortMethod.DESCENDING));
+      Assert.assertEquals(expected.size(), timeline.size());
+    }
+    for (Comment comment : expected) {
+      Assert.assertEquals(Optional.of(comment), timeline.get(comment.getId()));
+    }
+  }
+
+  /** Test that removal works, and that views taken earlier are unaffected */
+  @Test
+  public void testRemove() {
+    Comment first = comment(100);
+    Comment second = comment(200);
+    CommentTimeline timeline = new CommentTimeline();
+    timeline.add(first);
+    timeline.add(second);
+
+    List<Comment> before = timeline.asList(SortMethod.DESCENDING);
+    Assert.assertEquals(Optional.of(first), timeline.remove(first.getId()));
+    Assert.assertFalse(timeline.remove(first.getId()).isPresent());
+
+    Assert.assertEquals(Arrays.asList(second), timeline.asList(SortMethod.DESCENDING));
+    Assert.assertEquals(Arrays.asList(first, second), before);
+  }
+
+  /** Test lookup by ID, before and after removal and compaction */
+  @Test
+  public void testGetById() {
+    CommentTimeline timeline = new CommentTimeline();
+    List<Comment> added = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Comment comment = comment(i);
+      added.add(comment);
+      timeline.add(comment);
+    }
+
+    Assert.assertEquals(Optional.of(added.get(42)), timeline.get(added.get(42).getId()));
+    timeline.remove(added.get(42).getId());
+    Assert.assertFalse(timeline.get(added.get(42).getId()).isPresent());
+
+    timeline.compact();
+    Assert.assertFalse(timeline.get(added.get(42).getId()).isPresent());
+    Assert.assertEquals(Optional.of(added.get(43)), timeline.get(added.get(43).getId()));
+    Assert.assertEquals(Optional.of(added.get(99)), timeline.get(added.get(99).getId()));
+  }
+
+  /** Test that tombstones are skipped by readers and reclaimed by compaction */
+  @Test
+  public void testTombstones() {
+    Comment first = comment(100);
+    Comment second = comment(200);
+    Comment third = comment(300);
+    CommentTimeline timeline = new CommentTimeline();
+    Arrays.asList(first, second, third).forEach(timeline::add);
+
+    timeline.remove(second.getId());
+    Assert.assertEquals(1, timeline.tombstones());
+    Assert.assertEquals(2, timeline.size());
+    Assert.assertEquals(Arrays.asList(third, first), timeline.asList(SortMethod.ASCENDING));
+
+    // An out of order insert shifts slots, including the tombstone
+    Comment zeroth = comment(50);
+    timeline.add(zeroth);
+    Assert.assertEquals(Optional.of(third), timeline.get(third.getId()));
+    Assert.assertEquals(Arrays.asList(zeroth, first, third),
+        timeline.asList(SortMethod.DESCENDING));
+
+    timeline.compact();
+    Assert.assertEquals(0, timeline.tombstones());
+    Assert.assertEquals(Arrays.asList(zeroth, first, third),
+        timeline.asList(SortMethod.DESCENDING));
+    Assert.assertEquals(Optional.of(first), timeline.get(first.getId()));
+  }
+
+  /** Test keyed lookup in both directions, including duplicate timestamps */
+  @Test
+  public void testPosition() {
+    Comment first = comment(100);
+    Comment secondA = comment(200);
+    Comment secondB = comment(200);
+    Comment third = comment(300);
+    CommentTimeline timeline = new CommentTimeline();
+    Arrays.asList(first, secondA, secondB, third).forEach(timeline::add);
+
+    List<Comment> oldestFirst = timeline.asList(SortMethod.DESCENDING);
+    Assert.assertEquals(secondB, oldestFirst.get(CommentTimeline.positionAfter(oldestFirst,
+        SortMethod.DESCENDING, 200, secondA.getId())));
+    Assert.assertEquals(secondA, oldestFirst.get(CommentTimeline.positionOf(oldestFirst,
+        SortMethod.DESCENDING, 200, secondA.getId())));
+    Assert.assertEquals(0,
+        CommentTimeline.positionAfter(oldestFirst, SortMethod.DESCENDING, 50, 0));
+    Assert.assertEquals(4,
+        CommentTimeline.positionAfter(oldestFirst, SortMethod.DESCENDING, 300, third.getId()));
+
+    List<Comment> newestFirst = timeline.asList(SortMethod.ASCENDING);
+    Assert.assertEquals(secondA, newestFirst.get(CommentTimeline.positionAfter(newestFirst,
+        SortMethod.ASCENDING, 200, secondB.getId())));
+    Assert.assertEquals(first, newestFirst.get(
+        CommentTimeline.positionOf(newestFirst, SortMethod.ASCENDING, 150, 0)));
+    Assert.assertEquals(4,
+        CommentTimeline.positionAfter(newestFirst, SortMethod.ASCENDING, 100, first.getId()));
+  }
+
+  /** Test that readers never see a partially written timeline while a writer appends */
+  @Test
+  public void testConcurrentReadWrite() throws InterruptedException {
+    CommentTimeline timeline = new CommentTimeline();
+    AtomicBoolean failed = new AtomicBoolean(false);
+    int count = 10000;
+
+    Thread writer = new Thread(() -> {
+      for (int i = 0; i < count; i++) {
+        timeline.add(comment(i));
+      }
+    });
+    List<Thread> readers = new ArrayList<>();
+    for (int r = 0; r < 4; r++) {
+      readers.add(new Thread(() -> {
+        while (timeline.size() < count) {
+          long last = -1;
+          for (Comment c : timeline.asList(SortMethod.DESCENDING)) {
+            if (c == null || c.getTimestamp() <= last) {
+              failed.set(true);
+            }
+            last = c == null ? last : c.getTimestamp();
+          }
+        }
+      }));
+    }
+
+    writer.start();
+    readers.forEach(Thread::start);
+    writer.join();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    Assert.assertFalse(failed.get());
+    Assert.assertEquals(count, timeline.size());
+  }
+
+  /** Test that every field survives being stored in columns, moved, and compacted */
+  @Test
+  public void testFields() {
+    Comment plain = comment(100);
+    Comment full = new Comment("Caf\u00e9 \ud83d\udc14", "Dana", null, 200, "/image/1",
+        new BlobKey("blob-1"));
+    Comment missing = new Comment(null, null, null, 300, null, null);
+    CommentTimeline timeline = new CommentTimeline();
+    timeline.add(missing);
+    timeline.add(full);
+    // Moves the others up a slot
+    timeline.add(plain);
+    timeline.remove(plain.getId());
+    timeline.compact();
+
+    Comment stored = timeline.get(full.getId()).get();
+    Assert.assertEquals(full.getText(), stored.getText());
+    Assert.assertEquals("Dana", stored.getName());
+    Assert.assertEquals(200, stored.getTimestamp());
+    Assert.assertEquals(full.getId(), stored.getId());
+    Assert.assertEquals(Optional.of("/image/1"), stored.getImageUrl());
+    Assert.assertEquals(Optional.of(new BlobKey("blob-1")), stored.getBlobKey());
+
+    stored = timeline.get(missing.getId()).get();
+    Assert.assertNull(stored.getText());
+    Assert.assertNull(stored.getName());
+    Assert.assertFalse(stored.getImageUrl().isPresent());
+    Assert.assertFalse(stored.getBlobKey().isPresent());
+
+    Assert.assertTrue(timeline.contains(full.getId()));
+    Assert.assertFalse(timeline.contains(plain.getId()));
+  }
+}
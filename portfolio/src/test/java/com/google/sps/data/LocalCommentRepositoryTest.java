@@ -0,0 +1,139 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the LocalCommentRepository class */
+@RunWith(JUnit4.class)
+public class LocalCommentRepositoryTest {
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = Files.createTempFile("comments", ".db");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  /** Returns every comment stored before the given time, newest first */
+  private static List<Comment> loadAll(LocalCommentRepository repository, long before) {
+    List<Comment> loaded = new ArrayList<>();
+    repository.load(before, loaded::addAll);
+    return loaded;
+  }
+
+  /** Test that comments survive reopening, minus deletes, and keep their IDs */
+  @Test
+  public void testReopen() throws IOException {
+    Comment first;
+    Comment second;
+    Comment third;
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      first = repository.add("First", "Name", 100, "/image/1", null);
+      second = repository.add("Second", "Name", 200, null, null);
+      third = repository.add("Third", "Name", 300, null, null);
+      repository.delete(Arrays.asList(second));
+    }
+
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      List<Comment> loaded = loadAll(repository, Long.MAX_VALUE);
+      Assert.assertEquals(Arrays.asList(third, first), loaded);
+      Assert.assertEquals(first.getId(), loaded.get(1).getId());
+      Assert.assertEquals(first.getImageUrl(), loaded.get(1).getImageUrl());
+
+      // IDs are never reused, even after a restart
+      Comment fourth = repository.add("Fourth", "Name", 400, null, null);
+      Assert.assertTrue(fourth.getId() > third.getId());
+    }
+  }
+
+  /** Test that only comments from before the given time are loaded */
+  @Test
+  public void testLoadBefore() throws IOException {
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      Comment old = repository.add("Old", "Name", 100, null, null);
+      repository.add("New", "Name", 200, null, null);
+      Assert.assertEquals(Arrays.asList(old), loadAll(repository, 200));
+    }
+  }
+
+  /** Test that the file grows past its first mapping */
+  @Test
+  public void testGrow() throws IOException {
+    // Each comment is about 4 KiB, so this needs a few megabytes
+    String text = String.join("", Collections.nCopies(4096, "x"));
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      for (int i = 0; i < 1000; i++) {
+        repository.add(text, "Name", i, null, null);
+      }
+    }
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      Assert.assertEquals(1000, loadAll(repository, Long.MAX_VALUE).size());
+    }
+  }
+
+  /** Test that a torn record is dropped, and that later writes are still found */
+  @Test
+  public void testTornRecord() throws IOException {
+    Comment first;
+    long end;
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      first = repository.add("First", "Name", 100, null, null);
+      repository.add("Second", "Name", 200, null, null);
+    }
+    // Corrupt the last byte of the second record
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      end = 0;
+      while (file.length() > end + 4) {
+        file.seek(end);
+        int length = file.readInt();
+        if (length == 0) {
+          break;
+        }
+        end += 8 + length;
+      }
+      file.seek(end - 1);
+      int last = file.read();
+      file.seek(end - 1);
+      file.write(last ^ 0xFF);
+    }
+
+    Comment third;
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      Assert.assertEquals(Arrays.asList(first), loadAll(repository, Long.MAX_VALUE));
+      third = repository.add("Third", "Name", 300, null, null);
+    }
+    try (LocalCommentRepository repository = new LocalCommentRepository(path)) {
+      Assert.assertEquals(Arrays.asList(third, first), loadAll(repository, Long.MAX_VALUE));
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the LongIntHashMap class */
+@RunWith(JUnit4.class)
+public class LongIntHashMapTest {
+  /** Test basic puts, gets and removes */
+  @Test
+  public void testPutGetRemove() {
+    LongIntHashMap map = new LongIntHashMap();
+    map.put(5, 50);
+    map.put(-7, 70);
+    map.put(5, 55);
+
+    Assert.assertEquals(55, map.get(5));
+    Assert.assertEquals(70, map.get(-7));
+    Assert.assertEquals(LongIntHashMap.NOT_FOUND, map.get(6));
+    Assert.assertEquals(2, map.size());
+
+    Assert.assertEquals(55, map.remove(5));
+    Assert.assertEquals(LongIntHashMap.NOT_FOUND, map.remove(5));
+    Assert.assertEquals(LongIntHashMap.NOT_FOUND, map.get(5));
+    Assert.assertEquals(1, map.size());
+  }
+
+  /** Test against a HashMap with many random operations, so that probe runs and resizes happen */
+  @Test
+  public void testRandomOperations() {
+    LongIntHashMap map = new LongIntHashMap();
+    Map<Long, Integer> expected = new HashMap<>();
+    Random random = new Random(42);
+
+    for (int i = 0; i < 100000; i++) {
+      // A small key space makes collisions and removals of present keys common
+      long key = random.nextInt(5000);
+      if (random.nextBoolean()) {
+        int value = random.nextInt(Integer.MAX_VALUE);
+        map.put(key, value);
+        expected.put(key, value);
+      } else {
+        Integer removed = expected.remove(key);
+        Assert.assertEquals(removed == null ? LongIntHashMap.NOT_FOUND : removed, map.remove(key));
+      }
+    }
+
+    Assert.assertEquals(expected.size(), map.size());
+    for (long key = 0; key < 5000; key++) {
+      Integer value = expected.get(key);
+      Assert.assertEquals(value == null ? LongIntHashMap.NOT_FOUND : value, map.get(key));
+    }
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the ParallelFilter class */
+@RunWith(JUnit4.class)
+public class ParallelFilterTest {
+  /** Enough candidates for several chunks, with a partial one at the end. */
+  private static final int COUNT = ParallelFilter.CHUNK_SIZE * 5 + 17;
+
+  private static List<Comment> createCandidates() {
+    List<Comment> candidates = new ArrayList<>();
+    for (int i = 0; i < COUNT; i++) {
+      String text = i % 7 == 0 ? "Seven " + i : "Other " + i;
+      candidates.add(new Comment(text, "Name", i, null, i, null, null));
+    }
+    return candidates;
+  }
+
+  /** Test that chunks scanned in parallel give the same matches, in order, as a single thread */
+  @Test
+  public void testOrderPreserved() {
+    List<Comment> candidates = createCandidates();
+    List<Comment> expected =
+        candidates.stream().filter(c -> c.contains("seven")).collect(Collectors.toList());
+
+    ParallelFilter parallel = new ParallelFilter(4, 1);
+    Assert.assertEquals(expected,
+        parallel.filter(COUNT, candidates::get, c -> c.contains("seven")));
+    ParallelFilter sequential = new ParallelFilter(1, 1);
+    Assert.assertEquals(expected,
+        sequential.filter(COUNT, candidates::get, c -> c.contains("seven")));
+  }
+
+  /** Test that candidates that are gone are skipped */
+  @Test
+  public void testMissingCandidates() {
+    List<Comment> candidates = createCandidates();
+    ParallelFilter parallel = new ParallelFilter(4, 1);
+    List<Comment> matches =
+        parallel.filter(COUNT, i -> i % 2 == 0 ? null : candidates.get(i), c -> true);
+    Assert.assertEquals(COUNT / 2, matches.size());
+    Assert.assertEquals(candidates.get(1), matches.get(0));
+  }
+
+  /** Test that the parallelism and threshold must be positive */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidParallelism() {
+    new ParallelFilter(0, 1);
+  }
+}
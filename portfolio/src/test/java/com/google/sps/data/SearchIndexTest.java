@@ -0,0 +1,135 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the SearchIndex class */
+@RunWith(JUnit4.class)
+public class SearchIndexTest {
+  private static final Comment CHICKENS =
+      new Comment("Chickens chickens everywhere, I love chickens", "Alice", null, 1000, null, null);
+  private static final Comment ONE_CHICKEN =
+      new Comment("There is a chicken in the yard and a dog by the fence", "Bob", null, 2000, null,
+          null);
+  private static final Comment CAFE =
+      new Comment("The caf\u00e9 on the corner has great coffee", "Carol", null, 3000, null, null);
+  private static final Comment DOG =
+      new Comment("The dog sleeps", "Chicken Dan", null, 4000, null, null);
+
+  private final CommentTimeline timeline = new CommentTimeline();
+
+  private SearchIndex createIndex() {
+    SearchIndex index = new SearchIndex(timeline);
+    for (Comment comment : Arrays.asList(CHICKENS, ONE_CHICKEN, CAFE, DOG)) {
+      timeline.add(comment);
+      index.add(comment);
+    }
+    return index;
+  }
+
+  /** Test that comments using a word more often, relative to their length, rank higher */
+  @Test
+  public void testRanking() {
+    SearchIndex index = createIndex();
+    CommentPage results = index.search("chickens", 10);
+    Assert.assertEquals(Arrays.asList(CHICKENS), results.getComments());
+
+    results = index.search("dog chicken", 10);
+    // Short and containing both words beats long and containing both words
+    Assert.assertEquals(Arrays.asList(DOG, ONE_CHICKEN), results.getComments());
+    Assert.assertEquals(2, results.getTotalCount());
+  }
+
+  /** Test that case and accents are ignored, and that stop words never match */
+  @Test
+  public void testNormalization() {
+    SearchIndex index = createIndex();
+    Assert.assertEquals(Arrays.asList(CAFE), index.search("CAFE", 10).getComments());
+    Assert.assertEquals(Arrays.asList(CAFE), index.search("Caf\u00c9!", 10).getComments());
+    Assert.assertTrue(index.search("the", 10).getComments().isEmpty());
+    Assert.assertEquals(Arrays.asList("the", "cafe", "s", "coffee"),
+        SearchIndex.tokenize("The  CAF\u00c9'S coffee\uff01"));
+  }
+
+  /** Test that quoted queries only match the exact phrase, skipping over stop words */
+  @Test
+  public void testPhrase() {
+    SearchIndex index = createIndex();
+    Assert.assertEquals(Arrays.asList(ONE_CHICKEN),
+        index.search("\"chicken in the yard\"", 10).getComments());
+    Assert.assertTrue(index.search("\"yard chicken\"", 10).getComments().isEmpty());
+    // The text and the name are separate, so no phrase spans both
+    Assert.assertTrue(index.search("\"sleeps chicken\"", 10).getComments().isEmpty());
+    // Not even when a stop word stands where the gap between them is
+    Assert.assertTrue(index.search("\"sleeps the chicken\"", 10).getComments().isEmpty());
+  }
+
+  /** Test that a word repeated in a phrase must appear at each of its positions */
+  @Test
+  public void testPhraseRepeatedWord() {
+    SearchIndex index = new SearchIndex(timeline);
+    Comment cat = new Comment("Dog eats cat", "Eve", null, 5000, null, null);
+    Comment dog = new Comment("It is dog eats dog out there", "Frank", null, 6000, null, null);
+    for (Comment comment : Arrays.asList(cat, dog)) {
+      timeline.add(comment);
+      index.add(comment);
+    }
+
+    Assert.assertEquals(Arrays.asList(dog), index.search("\"dog eats dog\"", 10).getComments());
+    Assert.assertEquals(Arrays.asList(cat), index.search("\"dog eats cat\"", 10).getComments());
+  }
+
+  /** Test that only the best results are returned, but every match is counted */
+  @Test
+  public void testLimit() {
+    SearchIndex index = createIndex();
+    CommentPage results = index.search("chicken dog coffee", 1);
+    Assert.assertEquals(Arrays.asList(DOG), results.getComments());
+    Assert.assertEquals(3, results.getTotalCount());
+  }
+
+  /** Test that removed comments no longer match */
+  @Test
+  public void testRemove() {
+    SearchIndex index = createIndex();
+    timeline.remove(DOG.getId());
+    index.removeAll(Collections.singleton(DOG));
+
+    Assert.assertEquals(Arrays.asList(ONE_CHICKEN), index.search("dog", 10).getComments());
+    Assert.assertEquals(3, index.size());
+  }
+
+  /** Test that equal scores put the newer comment first, even when it has the lower ID */
+  @Test
+  public void testTieBreak() {
+    SearchIndex index = new SearchIndex(timeline);
+    // Datastore doesn't hand out IDs in order
+    Comment older = new Comment("Parrots talk", "Gina", 9002, null, 5000, null, null);
+    Comment newer = new Comment("Parrots talk", "Gina", 9001, null, 6000, null, null);
+    for (Comment comment : Arrays.asList(older, newer)) {
+      timeline.add(comment);
+      index.add(comment);
+    }
+
+    Assert.assertEquals(Arrays.asList(newer, older), index.search("parrots", 10).getComments());
+    Assert.assertEquals(Arrays.asList(newer), index.search("parrots", 1).getComments());
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the SortedIndex class */
+@RunWith(JUnit4.class)
+public class SortedIndexTest {
+  /** Test that comments come out in key order, newest first when keys are equal */
+  @Test
+  public void testOrder() {
+    SortedIndex<String> index = new SortedIndex<>(Comparator.naturalOrder());
+    index.add("bob", 10, 1);
+    index.add("alice", 20, 2);
+    index.add("bob", 30, 3);
+    index.add("carol", 5, 4);
+    index.add("alice", 20, 2);
+
+    Assert.assertEquals(4, index.size());
+    Assert.assertArrayEquals(new long[] {2, 3, 1, 4}, index.getPage(0, 10, false));
+    Assert.assertArrayEquals(new long[] {4, 1, 3, 2}, index.getPage(0, 10, true));
+  }
+
+  /** Test pages starting in the middle, and pages past the end */
+  @Test
+  public void testPages() {
+    SortedIndex<Integer> index = new SortedIndex<>(Comparator.naturalOrder());
+    for (int i = 0; i < 10; i++) {
+      index.add(i, i, i);
+    }
+
+    Assert.assertArrayEquals(new long[] {3, 4, 5}, index.getPage(3, 3, false));
+    Assert.assertArrayEquals(new long[] {6, 5, 4}, index.getPage(3, 3, true));
+    Assert.assertArrayEquals(new long[] {8, 9}, index.getPage(8, 5, false));
+    Assert.assertArrayEquals(new long[0], index.getPage(10, 5, false));
+  }
+
+  /** Test that removing takes out exactly the given comment */
+  @Test
+  public void testRemove() {
+    SortedIndex<String> index = new SortedIndex<>(Comparator.naturalOrder());
+    index.add("bob", 10, 1);
+    index.add("bob", 30, 3);
+    index.add("alice", 20, 2);
+
+    index.remove("bob", 10, 1);
+    index.remove("dave", 10, 1);
+    Assert.assertEquals(2, index.size());
+    Assert.assertArrayEquals(new long[] {2, 3}, index.getPage(0, 10, false));
+  }
+
+  /** Test against a sorted list with many random adds, removes and pages */
+  @Test
+  public void testRandomOperations() {
+    SortedIndex<Integer> index = new SortedIndex<>(Comparator.naturalOrder());
+    // Each entry is {key, timestamp, id}
+    List<long[]> expected = new ArrayList<>();
+    Comparator<long[]> order = Comparator.<long[]>comparingLong(entry -> entry[0])
+        .thenComparing(Comparator.<long[]>comparingLong(entry -> entry[1]).reversed())
+        .thenComparing(Comparator.<long[]>comparingLong(entry -> entry[2]).reversed());
+    Random random = new Random(42);
+
+    for (int id = 0; id < 5000; id++) {
+      if (!expected.isEmpty() && random.nextInt(3) == 0) {
+        long[] removed = expected.remove(random.nextInt(expected.size()));
+        index.remove((int) removed[0], removed[1], removed[2]);
+      } else {
+        // Few keys and timestamps, so that ties are common
+        long[] added = {random.nextInt(50), random.nextInt(20), id};
+        expected.add(added);
+        index.add((int) added[0], added[1], added[2]);
+      }
+    }
+
+    expected.sort(order);
+    long[] ids = expected.stream().mapToLong(entry -> entry[2]).toArray();
+    Assert.assertEquals(ids.length, index.size());
+    Assert.assertArrayEquals(ids, index.getPage(0, ids.length, false));
+    for (int i = 0; i < 100; i++) {
+      int from = random.nextInt(ids.length);
+      int count = random.nextInt(30);
+      int to = Math.min(from + count, ids.length);
+      Assert.assertArrayEquals(Arrays.copyOfRange(ids, from, to),
+          index.getPage(from, count, false));
+    }
+  }
+}
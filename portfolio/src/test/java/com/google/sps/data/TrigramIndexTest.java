@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the TrigramIndex class */
+@RunWith(JUnit4.class)
+public class TrigramIndexTest {
+  private static final Comment OLD =
+      new Comment("Hello World", "Alice", null, 1000, null, null);
+  private static final Comment MIDDLE =
+      new Comment("Chickens are great", "Bob", null, 2000, null, null);
+  private static final Comment NEW =
+      new Comment("What a WORLD we live in", "Worldly Carol", null, 3000, null, null);
+
+  private static TrigramIndex createIndex() {
+    TrigramIndex index = new TrigramIndex();
+    index.add(OLD);
+    index.add(MIDDLE);
+    index.add(NEW);
+    return index;
+  }
+
+  /** Test that matches ignore case and come back newest first */
+  @Test
+  public void testSearchIgnoresCase() {
+    TrigramIndex index = createIndex();
+    Assert.assertEquals(Arrays.asList(NEW, OLD), index.search("wOrLd"));
+  }
+
+  /** Test that the name is searched as well as the text */
+  @Test
+  public void testSearchName() {
+    TrigramIndex index = createIndex();
+    Assert.assertEquals(Arrays.asList(MIDDLE), index.search("bob"));
+  }
+
+  /** Test that filters shorter than a trigram still work */
+  @Test
+  public void testShortFilter() {
+    TrigramIndex index = createIndex();
+    Assert.assertEquals(Arrays.asList(NEW, MIDDLE, OLD), index.search("e"));
+    Assert.assertEquals(Arrays.asList(NEW, MIDDLE, OLD), index.search(""));
+  }
+
+  /** Test that candidates sharing trigrams but not the whole filter are rejected */
+  @Test
+  public void testVerifyCandidates() {
+    TrigramIndex index = createIndex();
+    // Both words of "World Hello" are in OLD, but the phrase itself is not
+    Assert.assertTrue(index.search("World Hello").isEmpty());
+    Assert.assertTrue(index.search("missing").isEmpty());
+  }
+
+  /** Test that removed comments no longer match */
+  @Test
+  public void testRemove() {
+    TrigramIndex index = createIndex();
+    index.remove(NEW);
+
+    List<Comment> results = index.search("world");
+    Assert.assertEquals(Arrays.asList(OLD), results);
+    Assert.assertEquals(2, index.size());
+
+    // Removing again does nothing
+    index.remove(NEW);
+    Assert.assertEquals(2, index.size());
+  }
+}
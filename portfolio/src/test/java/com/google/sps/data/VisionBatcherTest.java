@@ -0,0 +1,171 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/** Tests the VisionBatcher class */
+@RunWith(JUnit4.class)
+public class VisionBatcherTest {
+  /** Returns a client that labels each image with its own content. */
+  private static ImageAnnotatorClient echoClient() {
+    ImageAnnotatorClient client = mock(ImageAnnotatorClient.class);
+    when(client.batchAnnotateImages(anyList())).thenAnswer(invocation -> {
+      List<AnnotateImageRequest> requests = invocation.getArgument(0);
+      BatchAnnotateImagesResponse.Builder response = BatchAnnotateImagesResponse.newBuilder();
+      for (AnnotateImageRequest request : requests) {
+        response.addResponses(AnnotateImageResponse.newBuilder().addLabelAnnotations(
+            EntityAnnotation.newBuilder()
+                .setDescription(request.getImage().getContent().toStringUtf8())));
+      }
+      return response.build();
+    });
+    return client;
+  }
+
+  private static AnnotateImageRequest requestFor(String content) {
+    return AnnotateImageRequest.newBuilder()
+        .setImage(Image.newBuilder().setContent(ByteString.copyFromUtf8(content))).build();
+  }
+
+  private static String labelOf(CompletableFuture<AnnotateImageResponse> response)
+      throws Exception {
+    return response.get(5, TimeUnit.SECONDS).getLabelAnnotations(0).getDescription();
+  }
+
+  /** Test that requests made together share one call, and each gets its own response */
+  @Test
+  public void testBatched() throws Exception {
+    ImageAnnotatorClient client = echoClient();
+    try (VisionBatcher batcher = new VisionBatcher(client, 3, 10000)) {
+      List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+      for (String content : new String[] {"cat", "dog", "chicken"}) {
+        responses.add(batcher.annotate(requestFor(content)));
+      }
+
+      // A full batch doesn't wait for the delay
+      Assert.assertEquals("cat", labelOf(responses.get(0)));
+      Assert.assertEquals("dog", labelOf(responses.get(1)));
+      Assert.assertEquals("chicken", labelOf(responses.get(2)));
+      verify(client, times(1)).batchAnnotateImages(anyList());
+    }
+  }
+
+  /** Test that a batch is closed before its requests pass the byte limit */
+  @Test
+  public void testBatchBytes() throws Exception {
+    ImageAnnotatorClient client = echoClient();
+    long twoRequests = 2 * requestFor("cat").getSerializedSize();
+    try (VisionBatcher batcher = new VisionBatcher(client, 16, twoRequests, 50)) {
+      List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+      for (String content : new String[] {"cat", "dog", "emu"}) {
+        responses.add(batcher.annotate(requestFor(content)));
+      }
+
+      Assert.assertEquals("cat", labelOf(responses.get(0)));
+      Assert.assertEquals("dog", labelOf(responses.get(1)));
+      Assert.assertEquals("emu", labelOf(responses.get(2)));
+      @SuppressWarnings("unchecked")
+      ArgumentCaptor<List<AnnotateImageRequest>> batches = ArgumentCaptor.forClass(List.class);
+      verify(client, times(2)).batchAnnotateImages(batches.capture());
+      Assert.assertEquals(2, batches.getAllValues().get(0).size());
+      Assert.assertEquals(1, batches.getAllValues().get(1).size());
+    }
+  }
+
+  /** Test that a request cancelled before its batch is sent is left out of the call */
+  @Test
+  public void testCancelled() throws Exception {
+    ImageAnnotatorClient client = echoClient();
+    try (VisionBatcher batcher = new VisionBatcher(client, 16, 200)) {
+      CompletableFuture<AnnotateImageResponse> cancelled = batcher.annotate(requestFor("cat"));
+      CompletableFuture<AnnotateImageResponse> wanted = batcher.annotate(requestFor("dog"));
+      cancelled.cancel(false);
+
+      Assert.assertEquals("dog", labelOf(wanted));
+      @SuppressWarnings("unchecked")
+      ArgumentCaptor<List<AnnotateImageRequest>> batches = ArgumentCaptor.forClass(List.class);
+      verify(client, times(1)).batchAnnotateImages(batches.capture());
+      Assert.assertEquals(Arrays.asList(requestFor("dog")), batches.getValue());
+    }
+  }
+
+  /** Test that a lone request is sent once the delay is up */
+  @Test
+  public void testDelay() throws Exception {
+    try (VisionBatcher batcher = new VisionBatcher(echoClient(), 16, 10)) {
+      Assert.assertEquals("cat", labelOf(batcher.annotate(requestFor("cat"))));
+    }
+  }
+
+  /** Test that a failed call fails every request of its batch */
+  @Test
+  public void testFailure() throws Exception {
+    ImageAnnotatorClient client = mock(ImageAnnotatorClient.class);
+    when(client.batchAnnotateImages(anyList())).thenThrow(new IllegalStateException("Down"));
+    try (VisionBatcher batcher = new VisionBatcher(client, 2, 10000)) {
+      CompletableFuture<AnnotateImageResponse> first = batcher.annotate(requestFor("cat"));
+      CompletableFuture<AnnotateImageResponse> second = batcher.annotate(requestFor("dog"));
+      for (CompletableFuture<AnnotateImageResponse> response : Arrays.asList(first, second)) {
+        try {
+          response.get(5, TimeUnit.SECONDS);
+          Assert.fail("Expected the call's failure");
+        } catch (ExecutionException e) {
+          Assert.assertEquals("Down", e.getCause().getMessage());
+        }
+      }
+    }
+  }
+
+  /** Test that requests still waiting when the batcher closes fail instead of hanging */
+  @Test
+  public void testClose() throws Exception {
+    VisionBatcher batcher = new VisionBatcher(echoClient(), 16, 10000);
+    CompletableFuture<AnnotateImageResponse> waiting = batcher.annotate(requestFor("cat"));
+    batcher.close();
+
+    Assert.assertTrue(waiting.isCompletedExceptionally());
+    Assert.assertTrue(batcher.annotate(requestFor("dog")).isCompletedExceptionally());
+  }
+
+  /** Test that batches must fit in a single call */
+  @Test(expected = IllegalArgumentException.class)
+  public void testBatchTooLarge() {
+    new VisionBatcher(mock(ImageAnnotatorClient.class), VisionBatcher.MAX_BATCH_SIZE + 1, 5);
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the LatencyHistogram class */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+  /** Test that every latency falls in a bucket whose bounds contain it */
+  @Test
+  public void testBuckets() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      long nanos = (random.nextLong() >>> 1) >>> random.nextInt(Long.SIZE - 1);
+      int bucket = LatencyHistogram.bucketOf(nanos);
+      Assert.assertTrue(nanos + " above its bucket",
+          nanos <= LatencyHistogram.upperBoundOf(bucket));
+      Assert.assertTrue(nanos + " below its bucket",
+          bucket == 0 || nanos > LatencyHistogram.upperBoundOf(bucket - 1));
+    }
+    Assert.assertEquals(Long.MAX_VALUE,
+        LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+  }
+
+  /** Test that quantiles are within the precision of the buckets */
+  @Test
+  public void testQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long millis = 1; millis <= 1000; millis++) {
+      histogram.record(millis * 1000000, millis % 100 == 0);
+    }
+
+    Assert.assertEquals(1000, histogram.getCount());
+    Assert.assertEquals(10, histogram.getErrorCount());
+    Assert.assertEquals(500500L * 1000000, histogram.getSum());
+    assertNear(500000000, histogram.getQuantile(.5));
+    assertNear(990000000, histogram.getQuantile(.99));
+    assertNear(999000000, histogram.getQuantile(.999));
+    Assert.assertEquals(1000000000, histogram.getQuantile(1));
+  }
+
+  /** Test that an empty histogram reports zeroes */
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0, histogram.getQuantile(.99));
+  }
+
+  /** Test that a quantile outside of [0, 1] is rejected */
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadQuantile() {
+    new LatencyHistogram().getQuantile(99);
+  }
+
+  /** Test that no call is lost when many threads record at once */
+  @Test
+  public void testConcurrentRecords() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < 10000; i++) {
+          histogram.record(i, false);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(40000, histogram.getCount());
+    Assert.assertEquals(4L * 49995000, histogram.getSum());
+  }
+
+  /** Asserts that actual is no more than 1/16 above expected, and not below it. */
+  private static void assertNear(long expected, long actual) {
+    Assert.assertTrue(actual + " is not near " + expected,
+        actual >= expected && actual <= expected + expected / 16);
+  }
+}
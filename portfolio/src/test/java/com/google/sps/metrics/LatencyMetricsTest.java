@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the LatencyMetrics class */
+@RunWith(JUnit4.class)
+public class LatencyMetricsTest {
+  /** Test that timed calls are recorded, and that throwing counts as an error */
+  @Test
+  public void testTime() {
+    LatencyMetrics metrics = new LatencyMetrics("test_call", "Calls.", "call");
+    Assert.assertEquals("done", metrics.time("works", () -> "done"));
+    try {
+      metrics.run("breaks", () -> {
+        throw new IOException("Broken");
+      });
+      Assert.fail("Expected the call to throw");
+    } catch (IOException e) {
+      Assert.assertEquals("Broken", e.getMessage());
+    }
+
+    Assert.assertEquals(1, metrics.get("works").getCount());
+    Assert.assertEquals(0, metrics.get("works").getErrorCount());
+    Assert.assertEquals(1, metrics.get("breaks").getErrorCount());
+  }
+
+  /** Test the Prometheus text format */
+  @Test
+  public void testWriteTo() throws IOException {
+    LatencyMetrics metrics = new LatencyMetrics("test_request", "Requests.", "endpoint");
+    metrics.get("/data").record(2000000, false);
+    metrics.get("/data").record(2000000, true);
+    metrics.get("/a\"b").record(0, false);
+
+    StringWriter writer = new StringWriter();
+    metrics.writeTo(writer);
+    String text = writer.toString();
+
+    Assert.assertTrue(text, text.startsWith("# HELP test_request_seconds Requests.\n"
+        + "# TYPE test_request_seconds summary\n"
+        + "test_request_seconds{endpoint=\"/a\\\"b\",quantile=\"0.5\"} 0.0\n"));
+    Assert.assertTrue(text,
+        text.contains("test_request_seconds{endpoint=\"/data\",quantile=\"0.99\"} 0.002\n"));
+    Assert.assertTrue(text, text.contains("test_request_seconds_sum{endpoint=\"/data\"} 0.004\n"));
+    Assert.assertTrue(text, text.contains("test_request_seconds_count{endpoint=\"/data\"} 2\n"));
+    Assert.assertTrue(text, text.contains("# TYPE test_request_errors_total counter\n"));
+    Assert.assertTrue(text, text.contains("test_request_errors_total{endpoint=\"/data\"} 1\n"));
+    Assert.assertTrue(text, text.contains("test_request_error_ratio{endpoint=\"/data\"} 0.5\n"));
+  }
+}
@@ -0,0 +1,47 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the SizeMetrics class */
+@RunWith(JUnit4.class)
+public class SizeMetricsTest {
+  /** Test that small sizes are written exactly, without a unit */
+  @Test
+  public void testWriteTo() throws IOException {
+    SizeMetrics metrics = new SizeMetrics("test_batch_size", "Batches.", "call");
+    for (int size = 1; size <= 10; size++) {
+      metrics.record("vision", size);
+    }
+
+    StringWriter writer = new StringWriter();
+    metrics.writeTo(writer);
+    String text = writer.toString();
+
+    Assert.assertEquals(10, metrics.getCount("vision"));
+    Assert.assertTrue(text, text.startsWith("# HELP test_batch_size Batches.\n"
+        + "# TYPE test_batch_size summary\n"
+        + "test_batch_size{call=\"vision\",quantile=\"0.5\"} 5\n"
+        + "test_batch_size{call=\"vision\",quantile=\"0.99\"} 10\n"));
+    Assert.assertTrue(text, text.contains("test_batch_size_sum{call=\"vision\"} 55\n"));
+    Assert.assertTrue(text, text.contains("test_batch_size_count{call=\"vision\"} 10\n"));
+  }
+}
@@ -15,20 +15,29 @@
 package com.google.sps.servlets;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyFloat;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.AnalysisCache;
+import com.google.sps.data.AnalysisClients;
 import com.google.sps.data.Comment;
 import com.google.sps.data.CommentAnalysis;
 import com.google.sps.data.CommentPersistHelper;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class AnalyzeServletTest {
@@ -49,11 +58,14 @@ public class AnalyzeServletTest {
     when(request.getParameter("id")).thenReturn("" + id);
     when(helper.getCommentById(id)).thenReturn(Optional.of(comment));
     when(response.getWriter()).thenReturn(writer);
+    when(analysis.hasTextSentiment()).thenReturn(true);
+    when(analysis.getTextSentiment()).thenReturn(.5f);
 
     servlet.doPost(request, response, analysis);
 
     verify(analysis).analyzeText(comment);
     verify(analysis).analyzeImage(comment);
+    verify(helper).recordSentiment(id, .5f);
     verify(writer).println(anyString());
   }
 
@@ -79,6 +91,84 @@ public class AnalyzeServletTest {
 
     verify(analysis, never()).analyzeText(any(Comment.class));
     verify(analysis, never()).analyzeImage(any(Comment.class));
+    verify(helper, never()).recordSentiment(anyLong(), anyFloat());
     verify(response, never()).getWriter();
   }
+
+  /** Test that text analysis is sent alone when image analysis misses its deadline */
+  @Test
+  public void testAnalyzePartial() throws IOException {
+    long id = 1;
+
+    CommentAnalysis analysis = mock(CommentAnalysis.class);
+    Comment comment = mock(Comment.class);
+    CommentPersistHelper helper = mock(CommentPersistHelper.class);
+    ExecutorService analyzer = Executors.newFixedThreadPool(2);
+    AnalyzeServlet servlet =
+        new AnalyzeServlet(helper, null, new AnalysisCache(10, null), analyzer, 100);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    PrintWriter writer = mock(PrintWriter.class);
+
+    when(request.getParameter("id")).thenReturn("" + id);
+    when(helper.getCommentById(id)).thenReturn(Optional.of(comment));
+    when(response.getWriter()).thenReturn(writer);
+    when(analysis.hasTextSentiment()).thenReturn(true);
+    when(analysis.getTextSentiment()).thenReturn(.5f);
+    doAnswer(invocation -> {
+      Thread.sleep(10000);
+      return null;
+    }).when(analysis).analyzeImage(comment);
+
+    long start = System.currentTimeMillis();
+    servlet.doPost(request, response, analysis);
+    analyzer.shutdownNow();
+
+    Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    verify(analysis).analyzeText(comment);
+    verify(helper).recordSentiment(id, .5f);
+    verify(writer).println(anyString());
+  }
+
+  /** Test that a cached analysis isn't recorded again */
+  @Test
+  public void testAnalyzeCached() throws IOException {
+    long id = 1;
+
+    CommentAnalysis analysis = mock(CommentAnalysis.class);
+    Comment comment = mock(Comment.class);
+    CommentPersistHelper helper = mock(CommentPersistHelper.class);
+    AnalyzeServlet servlet = new AnalyzeServlet(helper);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    PrintWriter writer = mock(PrintWriter.class);
+
+    when(request.getParameter("id")).thenReturn("" + id);
+    when(helper.getCommentById(id)).thenReturn(Optional.of(comment));
+    when(response.getWriter()).thenReturn(writer);
+    when(analysis.hasTextSentiment()).thenReturn(true);
+    when(analysis.getTextSentiment()).thenReturn(.5f);
+    when(analysis.isComplete()).thenReturn(true);
+
+    servlet.doPost(request, response, analysis);
+    servlet.doPost(request, response, analysis);
+
+    verify(analysis).analyzeText(comment);
+    verify(helper).recordSentiment(id, .5f);
+    verify(writer, times(2)).println(anyString());
+  }
+
+  /** Test that the GCloud clients are shut down along with the servlet */
+  @Test
+  public void testDestroyClosesClients() {
+    AnalysisClients clients = mock(AnalysisClients.class);
+    AnalyzeServlet servlet = new AnalyzeServlet(mock(CommentPersistHelper.class), clients,
+        new AnalysisCache(10, null), Executors.newSingleThreadExecutor(), 100);
+
+    servlet.destroy();
+    servlet.destroy();
+    verify(clients).close();
+  }
 }
@@ -0,0 +1,112 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+@RunWith(JUnit4.class)
+public class DataServletTest {
+
+  /** Sends a GET for the first page, and returns the ETag of the response */
+  private static String getFirstPage(DataServlet servlet) throws IOException {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("num-comments=5");
+    when(request.getParameter("num-comments")).thenReturn("5");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+
+    servlet.doGet(request, response);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    return etag.getValue();
+  }
+
+  /** Test that a repeated GET with a matching If-None-Match gets a 304 and no body */
+  @Test
+  public void testNotModified() throws IOException {
+    DataServlet servlet = new DataServlet();
+    servlet.init();
+    String etag = getFirstPage(servlet);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("num-comments=5");
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).getOutputStream();
+    verify(response, never()).addIntHeader(anyString(), anyInt());
+  }
+
+  /** Test that a different page gets a different ETag */
+  @Test
+  public void testDifferentQuery() throws IOException {
+    DataServlet servlet = new DataServlet();
+    servlet.init();
+    String etag = getFirstPage(servlet);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("num-comments=10");
+    when(request.getParameter("num-comments")).thenReturn("10");
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+
+    servlet.doGet(request, response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  /** Test that queries whose strings hash alike still get different ETags */
+  @Test
+  public void testCollidingQueries() throws IOException {
+    DataServlet servlet = new DataServlet();
+    servlet.init();
+    // "Aa" and "BB" have the same String.hashCode()
+    HttpServletRequest first = mock(HttpServletRequest.class);
+    when(first.getQueryString()).thenReturn("filter=Aa");
+    when(first.getParameter("filter")).thenReturn("Aa");
+    HttpServletResponse firstResponse = mock(HttpServletResponse.class);
+    when(firstResponse.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+    servlet.doGet(first, firstResponse);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(firstResponse).setHeader(eq("ETag"), etag.capture());
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getQueryString()).thenReturn("filter=BB");
+    when(request.getParameter("filter")).thenReturn("BB");
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+
+    servlet.doGet(request, response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.metrics.LatencyHistogram;
+import com.google.sps.metrics.Metrics;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LatencyFilterTest {
+
+  /** Test that successful requests are recorded under their endpoint */
+  @Test
+  public void testSuccess() throws IOException, ServletException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+
+    new LatencyFilter().doFilter(requestTo("/latency-ok"), response, mock(FilterChain.class));
+    LatencyHistogram histogram = Metrics.REQUESTS.get("/latency-ok");
+    Assert.assertEquals(1, histogram.getCount());
+    Assert.assertEquals(0, histogram.getErrorCount());
+  }
+
+  /** Test that server errors and exceptions both count as errors */
+  @Test
+  public void testErrors() throws IOException, ServletException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getStatus()).thenReturn(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    new LatencyFilter().doFilter(requestTo("/latency-error"), response, mock(FilterChain.class));
+
+    FilterChain chain = mock(FilterChain.class);
+    doThrow(new IllegalArgumentException("Bad request")).when(chain)
+        .doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    try {
+      new LatencyFilter().doFilter(requestTo("/latency-error"), response, chain);
+      Assert.fail("Expected the exception to pass through");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+
+    LatencyHistogram histogram = Metrics.REQUESTS.get("/latency-error");
+    Assert.assertEquals(2, histogram.getCount());
+    Assert.assertEquals(2, histogram.getErrorCount());
+  }
+
+  private static HttpServletRequest requestTo(String path) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getServletPath()).thenReturn(path);
+    return request;
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentPage;
+import com.google.sps.data.CommentPersistHelper;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SearchServletTest {
+
+  /** Test that results are written in rank order, with the number of matches in a header */
+  @Test
+  public void testSearch() throws IOException {
+    Comment best = new Comment("Chickens", "Alice", null, 1000, null, null);
+    Comment worse = new Comment("A chicken and a dog", "Bob", null, 2000, null, null);
+    CommentPersistHelper commentStore = mock(CommentPersistHelper.class);
+    when(commentStore.search("chicken", 10))
+        .thenReturn(new CommentPage(Arrays.asList(best, worse), null, null, 7));
+    SearchServlet servlet = new SearchServlet(commentStore);
+    servlet.init();
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("q")).thenReturn("chicken");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    StringWriter body = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+
+    servlet.doGet(request, response);
+    verify(response).addIntHeader("num-comments", 7);
+    Assert.assertTrue(body.toString().indexOf("Chickens") < body.toString().indexOf("dog"));
+  }
+
+  /** Test that a search without a query is rejected */
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingQuery() throws IOException {
+    SearchServlet servlet = new SearchServlet(mock(CommentPersistHelper.class));
+    servlet.doGet(mock(HttpServletRequest.class), mock(HttpServletResponse.class));
+  }
+}